@@ -0,0 +1,162 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spends what is left of a time budget on the variants whose results are least certain.
+ *
+ * Every variant is measured once as usual. After that, as long as the budget allows, the variants
+ * whose confidence interval is wider than the target get another round of the same forks and
+ * iterations, widest first. A variant whose interval overlaps that of another variant of the same
+ * program and arguments counts double, as more samples may still tell them apart. Variants within
+ * the target are done. A round is only started if its last one fits in the remaining budget.
+ *
+ * The samples of all rounds are pooled into one record, the secondary results are those of the
+ * first round. The record counts its "rounds", and is written again after every round, so that
+ * a run that dies before the budget is spent keeps what it measured so far.
+ *
+ * ClassLoaderBenchmark schedules this way with -Dclassloading.budget=&lt;time&gt;, e.g. 8hr,
+ * counted from its start, and a target of -Dclassloading.targetWidth (0.02 by default).
+ */
+class BudgetScheduler {
+    private final double targetWidth;
+    private final Map<String, List<JSONObject>> records = new LinkedHashMap<>();
+    private final Map<String, Long> roundNanos = new LinkedHashMap<>();
+
+    /**
+     * @param targetWidth the relative half-width of the confidence interval a variant should get to
+     */
+    BudgetScheduler(double targetWidth) {
+        this.targetWidth = targetWidth;
+    }
+
+    /**
+     * Adds the records of a round of a variant, pooling them with those of its earlier rounds.
+     * @param nanos how long the round took
+     * @return the pooled records of the variant
+     */
+    synchronized List<JSONObject> add(String variant, List<JSONObject> round, long nanos) {
+        roundNanos.put(variant, nanos);
+        List<JSONObject> earlier = records.get(variant);
+        if (earlier == null) {
+            for (JSONObject record : round) {
+                record.put("rounds", 1);
+            }
+            records.put(variant, round);
+            return round;
+        }
+        for (JSONObject record : earlier) {
+            String arguments = record.getJSONObject("params").getString("arguments");
+            for (JSONObject next : round) {
+                if (next.getJSONObject("params").getString("arguments").equals(arguments)) {
+                    pool(record, next);
+                }
+            }
+        }
+        return earlier;
+    }
+
+    private static void pool(JSONObject record, JSONObject next) {
+        // Every array with one entry per fork
+        for (String perFork : new String[] { "samples", "forkStart", "forkOrder", "warmup" }) {
+            JSONArray forks = record.optJSONArray(perFork);
+            JSONArray nextForks = next.optJSONArray(perFork);
+            if (forks != null && nextForks != null) {
+                for (int i = 0; i < nextForks.length(); ++i) {
+                    forks.put(nextForks.get(i));
+                }
+            }
+        }
+        JSONArray samples = record.getJSONArray("samples");
+        ListStatistics stats = new ListStatistics();
+        for (int i = 0; i < samples.length(); ++i) {
+            JSONArray fork = samples.getJSONArray(i);
+            for (int j = 0; j < fork.length(); ++j) {
+                stats.addValue(fork.getDouble(j));
+            }
+        }
+        record.put("score", stats.getMean());
+        record.put("scoreError", ResultSink.number(stats.getMeanErrorAt(ResultSink.CONFIDENCE)));
+        record.put("confidence", ResultSink.interval(stats.getConfidenceIntervalAt(ResultSink.CONFIDENCE)));
+        record.put("forks", record.getInt("forks") + next.getInt("forks"));
+        record.put("rounds", record.getInt("rounds") + 1);
+    }
+
+    /**
+     * Picks the variants for the next round.
+     * @param count how many variants can run at the same time
+     * @param remainingNanos what is left of the budget
+     * @return the variants, most uncertain first, or none if every variant is done or nothing fits
+     */
+    synchronized List<String> next(int count, long remainingNanos) {
+        Map<String, Double> priorities = new LinkedHashMap<>();
+        for (Map.Entry<String, List<JSONObject>> e : records.entrySet()) {
+            double width = 0;
+            boolean overlaps = false;
+            for (JSONObject record : e.getValue()) {
+                width = Math.max(width, width(record));
+                overlaps |= overlapsCompetitor(e.getKey(), record);
+            }
+            if (width > targetWidth && roundNanos.get(e.getKey()) <= remainingNanos) {
+                priorities.put(e.getKey(), (overlaps ? 2 : 1) * width / targetWidth);
+            }
+        }
+        List<String> variants = new ArrayList<>(priorities.keySet());
+        variants.sort(Collections.reverseOrder((a, b) -> Double.compare(priorities.get(a), priorities.get(b))));
+        return variants.subList(0, Math.min(count, variants.size()));
+    }
+
+    /**
+     * The half-width of the confidence interval relative to the score, infinite if there is no interval yet.
+     */
+    static double width(JSONObject record) {
+        JSONArray confidence = record.getJSONArray("confidence");
+        double score = record.getDouble("score");
+        if (confidence.isNull(0) || confidence.isNull(1) || score == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return (confidence.getDouble(1) - confidence.getDouble(0)) / 2 / Math.abs(score);
+    }
+
+    private boolean overlapsCompetitor(String variant, JSONObject record) {
+        JSONObject matrix = record.optJSONObject("matrix");
+        if (matrix == null || record.getJSONArray("confidence").isNull(0)) {
+            return false;
+        }
+        for (Map.Entry<String, List<JSONObject>> e : records.entrySet()) {
+            if (e.getKey().equals(variant)) {
+                continue;
+            }
+            for (JSONObject other : e.getValue()) {
+                JSONObject otherMatrix = other.optJSONObject("matrix");
+                if (otherMatrix != null && !other.getJSONArray("confidence").isNull(0)
+                        && otherMatrix.getString("program").equals(matrix.getString("program"))
+                        && otherMatrix.getString("arguments").equals(matrix.getString("arguments"))
+                        && other.getString("mode").equals(record.getString("mode"))
+                        && overlap(record.getJSONArray("confidence"), other.getJSONArray("confidence"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlap(JSONArray a, JSONArray b) {
+        return a.getDouble(0) <= b.getDouble(1) && b.getDouble(0) <= a.getDouble(1);
+    }
+
+    /**
+     * The pooled records of every variant, in the order they were first added.
+     */
+    synchronized Map<String, List<JSONObject>> results() {
+        return records;
+    }
+}
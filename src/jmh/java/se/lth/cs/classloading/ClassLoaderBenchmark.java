@@ -1,32 +1,57 @@
 // This is a benchmark for running external programs as benchmarks.
 // We do this by loading the jar dynamically and then run the main class
 // of the benchmark.
+//
+// Usage: ClassLoaderBenchmark <spec.json>
+// What the spec can ask for and the -Dclassloading.* properties are described with the classes
+// that do it: MeasurementSettings, RunMatrix, ResultSink, ResultCache, RegressionGate, CpuSlot,
+// BudgetScheduler, StartupBenchmark, OutputCapture, GcMatrix, ThreadSweep, FanOut, Fixtures and
+// the reports. FlagTuner searches for the best JVM flags of a single run of the spec.
 package se.lth.cs.classloading;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.results.BenchmarkResult;
 import org.openjdk.jmh.results.RunResult;
-import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.IterationType;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
 import org.openjdk.jmh.runner.options.VerboseMode;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class ClassLoaderBenchmark {
 
@@ -39,27 +64,62 @@ public class ClassLoaderBenchmark {
      * @throws ClassNotFoundException
      */
     public static Class loadClassFromJar(String jarPath, String mainClass) throws FileNotFoundException {
-        Path jar = validatePath(jarPath);
+        URLClassLoader loader = openJar(jarPath);
 
+        Class classFromJar = null;
+        try {
+            classFromJar = Class.forName(mainClass, true, loader);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return classFromJar;
+    }
+
+    /**
+     * Creates a class loader for a JAR.
+     * @param jarPath the path of the JAR, or several separated by the path separator
+     * @return the loader, or null if a path cannot be turned into a URL
+     * @throws FileNotFoundException
+     */
+    static URLClassLoader openJar(String jarPath) throws FileNotFoundException {
+        List<URL> urls = new ArrayList<>();
         URLClassLoader loader = null;
         try {
+            for (Path entry : ClassPath.split(jarPath)) {
+                urls.add(validatePath(entry.toString()).toUri().toURL());
+            }
             loader = new URLClassLoader(
-                new URL[] { jar.toUri().toURL() },
+                urls.toArray(new URL[0]),
                     ClassLoader.getSystemClassLoader()
             );
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
+        return loader;
+    }
 
-        Class classFromJar = null;
-        try {
-            classFromJar = Class.forName(mainClass, true, loader);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+    /**
+     * Creates the class loader of a variant.
+     * @param classPath the resolved classpath, see ClassPath
+     * @param kind "indexed" for an IndexedJarLoader, "url" for a URLClassLoader
+     * @return the loader, which is Closeable
+     */
+    static ClassLoader openClassPath(String classPath, String kind) throws IOException {
+        if (kind.equals("url")) {
+            return openJar(classPath);
         }
-        return classFromJar;
+        List<Path> entries = new ArrayList<>();
+        for (Path entry : ClassPath.split(classPath)) {
+            entries.add(validatePath(entry.toString()));
+        }
+        return new IndexedJarLoader(entries, ClassLoader.getSystemClassLoader());
     }
 
+    private static void closeLoader(ClassLoader loader) throws IOException {
+        if (loader instanceof Closeable) {
+            ((Closeable) loader).close();
+        }
+    }
 
     /**
      * A function that interrupts execution if the path does not exist
@@ -91,58 +151,370 @@ public class ClassLoaderBenchmark {
         return specification;
     }
 
-    private static JSONObject loadBenchmarkSpec(Path benchmarkSpecPath) throws FileNotFoundException {
+    static JSONObject loadBenchmarkSpec(Path benchmarkSpecPath) throws FileNotFoundException {
         FileInputStream fs = new FileInputStream(benchmarkSpecPath.toFile());
         return loadBenchmarkSpec(fs);
     }
 
-    private static class RunSpecRow {
+    static class RunSpecRow implements Cloneable {
+        public String program;
+        public String variant;
+        // The level of every JVM axis of the run
+        public Map<String, String> axes;
+        // The input size of the argument sets that have one
+        public Map<String, Double> sizes;
+        // The JDK to fork with, or null for the one we run on
+        public Jdk jdk;
+        // The JMH profilers of the run, by name
+        public List<String> profilers;
+        // Runs of a GC matrix may have to meet a latency goal (NaN for none)
+        public double latencyGoal = Double.NaN;
         public String classPath;
         public String mainClass;
+        // The static method that creates what the operation is called on, "" to call main
+        public String setup = "";
+        // The method measured instead of main, "" for the Callable, Supplier or Runnable setup returns
+        public String operation = "";
         public List<String> arguments;
         public List<String> jvmArgs;
+        public String output;
+        // "reuse" to load the program once per fork, "fresh" for a new class loader per call
+        public String loader;
+        public int loaderPool;
+        // "url" for a URLClassLoader, "indexed" for an IndexedJarLoader
+        public String classLoader;
+        // Calls of main per thread that have to succeed at once before more than one thread is measured
+        public int threadCheck;
+        // Concurrent calls per operation, 0 for no fan-out, and the executor they run on
+        public int fanOut;
+        public String executor;
+        // Whether every call is timed into a LatencyHistogram
+        public boolean latencyHistogram;
+        // The input files of the program, by name, and "warm" or "cold" to say how they are read
+        public Map<String, String> fixtures = Collections.emptyMap();
+        public String fixtureIo;
+        // More than 0 to measure startup latency in that many fresh JVMs instead of running JMH
+        public int startupRuns;
+        public int startupWarmupRuns;
+        public boolean startupCds;
+        public MeasurementSettings settings;
+
+        /**
+         * The same run with other JVM arguments, e.g. those of a FlagTuner candidate.
+         */
+        RunSpecRow withJvmArgs(List<String> jvmArgs) {
+            try {
+                RunSpecRow copy = (RunSpecRow) clone();
+                copy.jvmArgs = new ArrayList<>(jvmArgs);
+                copy.profilers = new ArrayList<>(profilers);
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Every field, in a fixed order, for the result cache.
+         * New fields have to be added here, or changing them will not invalidate cached results.
+         */
+        List<String> fields() {
+            List<String> fields = new ArrayList<>();
+            fields.add(classPath);
+            fields.add(mainClass);
+            fields.add(setup + " " + operation);
+            fields.add(String.join("\u0000", arguments));
+            fields.add(String.join("\u0000", jvmArgs));
+            fields.add(output);
+            fields.add(loader + " " + loaderPool + " " + classLoader + " " + threadCheck);
+            fields.add(fanOut + " " + executor + " " + latencyHistogram);
+            try {
+                fields.add(Fixtures.fingerprint(fixtures) + " " + fixtureIo);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            fields.add(startupRuns + " " + startupWarmupRuns + " " + startupCds);
+            fields.add(settings.toString());
+            fields.add(program + " " + variant + " " + axes + " " + sizes);
+            fields.add(jdk == null ? "" : jdk.toJson().toString());
+            fields.add(profilers + " " + latencyGoal);
+            return fields;
+        }
+
+        /**
+         * Adds where in the run matrix each record is, for the scaling curves.
+         */
+        void addCoordinates(List<JSONObject> records) {
+            for (JSONObject record : records) {
+                String arguments = record.getJSONObject("params").getString("arguments");
+                JSONObject matrix = new JSONObject();
+                matrix.put("program", program);
+                matrix.put("variant", variant);
+                matrix.put("axes", new JSONObject(axes));
+                matrix.put("arguments", arguments);
+                if (sizes.containsKey(arguments)) {
+                    matrix.put("size", sizes.get(arguments));
+                }
+                if (!Double.isNaN(latencyGoal)) {
+                    matrix.put("latency-goal", latencyGoal);
+                }
+                record.put("matrix", matrix);
+                if (jdk != null) {
+                    record.put("jdk", jdk.toJson());
+                }
+            }
+        }
     }
 
     /**
      * Converts a benchmark specification to a specification about what JMH should run.
      * @param benchmarkSpec
+     * @param cpus how many CPUs a fork gets, see {@link #cpusPerFork}
      * @return
      */
-    private static Map<String, RunSpecRow> benchmarkSpecToRuns(JSONObject benchmarkSpec) {
-        Map<String, RunSpecRow> runSpec = new HashMap<>();
+    static Map<String, RunSpecRow> benchmarkSpecToRuns(JSONObject benchmarkSpec, RunMatrix matrix, int cpus) {
+        Map<String, RunSpecRow> runSpec = new LinkedHashMap<>();
 
-        for (String program : benchmarkSpec.keySet()) {
+        for (String program : new TreeSet<>(benchmarkSpec.keySet())) {
             JSONObject programData = benchmarkSpec.getJSONObject(program);
             String mainClass = programData.getString("main-class");
             JSONObject variantsData = programData.getJSONObject("variants");
             JSONArray argumentsData  = programData.getJSONArray("arguments");
             // argumentsData can be parameters to JMH, all combinations should be tried.
-            for (String variant : variantsData.keySet()) {
+            List<String> arguments = joinArguments(extractArguments(argumentsData));
+            Map<String, Double> sizes = RunMatrix.sizes(arguments, programData.optJSONArray("argument-sizes"));
+            for (String variant : new TreeSet<>(variantsData.keySet())) {
                 JSONObject variantInfo = variantsData.getJSONObject(variant);
                 JSONArray jvmArgs = variantInfo.getJSONArray("jvm-args");
-                String classPath = variantInfo.getString("classpath");
+                String classPath;
+                try {
+                    classPath = ClassPath.resolve(variantInfo.get("classpath"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not resolve the classpath of " + program + "/" + variant, e);
+                }
+                String classLoader = variantInfo.optString("class-loader", programData.optString("class-loader", "url"));
+                if (!classLoader.equals("indexed") && !classLoader.equals("url")) {
+                    throw new IllegalArgumentException("Unknown class-loader " + classLoader + " of " + program + "/" + variant
+                            + ", expected indexed or url");
+                }
 
                 // I think the classpath and the jvm args are both
                 // Arguments to the JVM anyway
 
-                // We add this variant specific data to the map.
-                RunSpecRow row = new RunSpecRow();
-                row.mainClass = mainClass; // To be passed as parameter
+                JSONObject jvmAxes = variantInfo.optJSONObject("jvm-axes");
+                if (jvmAxes == null) {
+                    jvmAxes = programData.optJSONObject("jvm-axes");
+                }
+                JSONObject gcMatrix = variantInfo.optJSONObject("gc-matrix");
+                if (gcMatrix == null) {
+                    gcMatrix = programData.optJSONObject("gc-matrix");
+                }
+                if (gcMatrix != null) {
+                    GcMatrix.check(program + "/" + variant, jvmArgs);
+                    JSONObject gcAxes = GcMatrix.axes(gcMatrix);
+                    jvmAxes = jvmAxes == null ? new JSONObject() : new JSONObject(jvmAxes.toString());
+                    for (String axis : gcAxes.keySet()) {
+                        if (jvmAxes.has(axis)) {
+                            throw new IllegalArgumentException("The JVM axis " + axis + " of " + program + "/" + variant
+                                    + " is already set by its gc-matrix");
+                        }
+                        jvmAxes.put(axis, gcAxes.get(axis));
+                    }
+                }
+                JSONArray jdks = variantInfo.optJSONArray("jdks");
+                if (jdks == null) {
+                    jdks = programData.optJSONArray("jdks");
+                }
+                List<Integer> threadCounts = ThreadSweep.counts(program + "/" + variant, variantInfo.has("thread-sweep")
+                        ? variantInfo.get("thread-sweep") : programData.opt("thread-sweep"), cpus);
+                boolean threadSafe = variantInfo.optBoolean("thread-safe", programData.optBoolean("thread-safe", true));
+                JSONObject fanOut = variantInfo.optJSONObject("fan-out");
+                if (fanOut == null) {
+                    fanOut = programData.optJSONObject("fan-out");
+                }
+                List<String> executors = fanOut == null ? new ArrayList<>() : FanOut.executors(fanOut);
+                JSONObject fixtureSpec = variantInfo.optJSONObject("fixtures");
+                if (fixtureSpec == null) {
+                    fixtureSpec = programData.optJSONObject("fixtures");
+                }
+                Map<String, String> fixtures;
+                try {
+                    fixtures = fixtureSpec == null ? Collections.emptyMap() : Fixtures.of(fixtureSpec);
+                } catch (FileNotFoundException e) {
+                    throw new UncheckedIOException("Could not find the fixtures of " + program + "/" + variant, e);
+                }
+                // Startup runs start a new JVM per run and have no iterations to prepare
+                boolean startupRuns = variantInfo.has("startup") || programData.has("startup");
+                List<String> io;
+                try {
+                    io = fixtures.isEmpty() || startupRuns ? new ArrayList<>() : Fixtures.ioLevels(
+                            variantInfo.has("fixture-io") ? variantInfo.getJSONArray("fixture-io") : programData.optJSONArray("fixture-io"),
+                            MeasurementSettings.of(variantInfo, programData).mode);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(program + "/" + variant + ": " + e.getMessage(), e);
+                }
+                for (RunMatrix.Levels levels : RunMatrix.withIo(RunMatrix.withExecutors(
+                        RunMatrix.withThreads(RunMatrix.expand(jdks, jvmAxes), threadCounts), executors), io)) {
+                    String id = RunMatrix.runId(program, variant, levels);
 
-                row.arguments = joinArguments(extractArguments(argumentsData)); // Cannot pass arrays as lists of parameters, needs to format them
+                    // We add this variant specific data to the map.
+                    RunSpecRow row = new RunSpecRow();
+                    row.program = program;
+                    row.variant = variant;
+                    row.axes = levels.labels;
+                    row.jdk = levels.jdk;
+                    row.sizes = sizes;
+                    row.mainClass = mainClass; // To be passed as parameter
+                    JSONObject entryPoint = variantInfo.optJSONObject("entry-point");
+                    if (entryPoint == null) {
+                        entryPoint = programData.optJSONObject("entry-point");
+                    }
+                    if (entryPoint != null) {
+                        row.setup = entryPoint.optString("setup", "");
+                        row.operation = entryPoint.optString("operation", "");
+                        if (row.setup.isEmpty() && row.operation.isEmpty()) {
+                            throw new IllegalArgumentException("The entry-point of " + id + " needs a setup or an operation");
+                        }
+                    }
 
-                List<String> jvmArgsList = new ArrayList<>();
-                for (int i = 0; i < jvmArgs.length(); ++i) { jvmArgsList.add(jvmArgs.getString(i)); }
-                row.jvmArgs = jvmArgsList;
+                    row.arguments = matrix.select(id, arguments); // Cannot pass arrays as lists of parameters, needs to format them
+                    if (row.arguments.isEmpty()) {
+                        continue;
+                    }
+                    Fixtures.check(id, row.arguments, fixtures);
+                    row.fixtures = fixtures;
+                    row.fixtureIo = levels.io;
 
-                row.classPath = classPath;
+                    List<String> jvmArgsList = new ArrayList<>();
+                    for (int i = 0; i < jvmArgs.length(); ++i) { jvmArgsList.add(jvmArgs.getString(i)); }
+                    jvmArgsList.addAll(levels.jvmArgs);
+                    row.jvmArgs = jvmArgsList;
+                    row.profilers = profilers(variantInfo.optJSONArray("profilers") != null ? variantInfo.optJSONArray("profilers")
+                            : programData.optJSONArray("profilers"));
 
-                runSpec.put(variant, row);
+                    if (gcMatrix != null) {
+                        String java = row.jdk == null ? Paths.get(System.getProperty("java.home"), "bin", "java").toString() : row.jdk.java();
+                        String collector = GcMatrix.collector(levels.jvmArgs);
+                        List<String> unlock = collector == null ? Collections.<String>emptyList() : GcMatrix.unlock(java, collector);
+                        if (unlock == null) {
+                            continue;
+                        }
+                        jvmArgsList.addAll(0, unlock);
+                        if (!row.profilers.contains("gc")) {
+                            row.profilers.add("gc");
+                        }
+                        row.latencyGoal = gcMatrix.optDouble("latency-goal");
+                    }
+
+                    row.classPath = classPath;
+                    row.classLoader = classLoader;
+
+                    // Where the program's own output goes, the variant can override the program
+                    String output = variantInfo.optString("output", programData.optString("output", "console"));
+                    int outputKb = variantInfo.optInt("output-kb", programData.optInt("output-kb", 64));
+                    if (outputKb < 1) {
+                        throw new IllegalArgumentException("output-kb of " + id + " must be at least 1");
+                    }
+                    row.output = outputMode(output, outputKb, id);
+
+                    row.loader = variantInfo.optString("loader", programData.optString("loader", "reuse"));
+                    if (!row.loader.equals("reuse") && !row.loader.equals("fresh")) {
+                        throw new IllegalArgumentException("Unknown loader " + row.loader + " of " + id + ", expected reuse or fresh");
+                    }
+                    if (row.loader.equals("fresh") && entryPoint != null) {
+                        throw new IllegalArgumentException(id + " cannot have a fresh loader per call, its entry-point is set up once");
+                    }
+                    row.loaderPool = variantInfo.optInt("loader-pool", programData.optInt("loader-pool", 32));
+                    if (row.loaderPool < 1) {
+                        throw new IllegalArgumentException("loader-pool of " + id + " must be at least 1");
+                    }
+
+                    JSONObject startup = variantInfo.optJSONObject("startup");
+                    if (startup == null) {
+                        startup = programData.optJSONObject("startup");
+                    }
+                    if (startup != null) {
+                        row.startupRuns = startup.optInt("runs", 20);
+                        row.startupWarmupRuns = startup.optInt("warmup-runs", 1);
+                        row.startupCds = startup.optBoolean("cds", false);
+                    }
+
+                    row.settings = MeasurementSettings.of(variantInfo, programData);
+                    if (levels.threads > 0) {
+                        row.settings.threads = levels.threads;
+                    }
+                    if (!threadSafe && row.settings.threads > 1) {
+                        throw new IllegalArgumentException(id + " is not thread safe, it cannot run in "
+                                + row.settings.threads + " threads");
+                    }
+                    row.threadCheck = variantInfo.optInt("thread-check-calls", programData.optInt("thread-check-calls", 100));
+
+                    row.latencyHistogram = variantInfo.optBoolean("latency-histogram", programData.optBoolean("latency-histogram", false));
+                    if (row.latencyHistogram) {
+                        if ((variantInfo.has("mode") || programData.has("mode")) && row.settings.mode != Mode.SampleTime) {
+                            throw new IllegalArgumentException(id + " has a latency-histogram, which measures in sample mode, not "
+                                    + row.settings.mode.shortLabel());
+                        }
+                        if (row.settings.adaptive) {
+                            throw new IllegalArgumentException(id + " has a latency-histogram, which needs a fixed warmup");
+                        }
+                        if (row.loader.equals("fresh") || fanOut != null) {
+                            throw new IllegalArgumentException(id + " can only have a latency-histogram with a reused loader"
+                                    + " and no fan-out, which has latencies of its own");
+                        }
+                        row.settings.mode = Mode.SampleTime;
+                    }
+
+                    if (fanOut != null) {
+                        if (!threadSafe) {
+                            throw new IllegalArgumentException(id + " is not thread safe, it cannot fan out");
+                        }
+                        if (row.loader.equals("fresh")) {
+                            throw new IllegalArgumentException(id + " cannot fan out with a fresh loader per call");
+                        }
+                        if (entryPoint != null) {
+                            throw new IllegalArgumentException(id + " cannot fan out, fan-out calls main, not an entry-point");
+                        }
+                        int featureVersion = row.jdk == null ? currentFeatureVersion() : row.jdk.featureVersion();
+                        if (!FanOut.supports(levels.executor, featureVersion)) {
+                            System.err.println("Skipping " + id + ", JDK " + featureVersion + " has no virtual threads");
+                            continue;
+                        }
+                        row.fanOut = fanOut.optInt("concurrency", 1000);
+                        if (row.fanOut < 1) {
+                            throw new IllegalArgumentException("The fan-out concurrency of " + id + " must be at least 1");
+                        }
+                        row.executor = levels.executor;
+                    }
+
+                    if (runSpec.put(id, row) != null) {
+                        throw new IllegalArgumentException("Two runs are named " + id);
+                    }
+                }
             }
         }
         return runSpec;
     }
 
+    /**
+     * Turns the output setting of the spec into the mode string understood by OutputCapture.
+     * @param output one of console, discard, ring or mmap
+     * @param kb the size of the ring buffer or the mapped file
+     * @param variant used to name the file the output is kept in
+     * @return
+     */
+    private static String outputMode(String output, int kb, String variant) {
+        switch (output) {
+            case "console":
+            case "discard":
+                return output;
+            case "ring":
+            case "mmap":
+                return output + ":" + kb * 1024 + ":" + Paths.get("program-output-" + RunMatrix.fileName(variant) + ".txt").toAbsolutePath();
+            default:
+                throw new IllegalArgumentException("Unknown output mode " + output + " for " + variant);
+        }
+    }
+
     private static List<List<String>> extractArguments(JSONArray arr) {
         List<List<String>> result = new ArrayList<>();
 
@@ -169,40 +541,274 @@ public class ClassLoaderBenchmark {
         return result;
     }
 
-    private static List<Options> createOptions(Map<String, RunSpecRow> runSpec) {
-        List<Options> options = new ArrayList<>();
+    /**
+     * The profilers of a run: those of the spec, or else those of -Dclassloading.profilers.
+     */
+    private static List<String> profilers(JSONArray spec) {
+        List<String> profilers = new ArrayList<>();
+        if (spec != null) {
+            for (int i = 0; i < spec.length(); ++i) { profilers.add(spec.getString(i)); }
+            return profilers;
+        }
+        for (String name : System.getProperty("classloading.profilers", "gc,memory").split(",")) {
+            if (!name.trim().isEmpty()) {
+                profilers.add(name.trim());
+            }
+        }
+        return profilers;
+    }
 
-        for (String variant : runSpec.keySet()) {
-            ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
-                    .include(ClassLoaderBenchmark.class.getSimpleName())
-                    .mode(Mode.AverageTime)
-                    .warmupIterations(2)
-                    .measurementIterations(3)
-                    .threads(1)
-                    .forks(1)
-                    .output("benchmark-output.log")
-                    .shouldFailOnError(true);
+    /**
+     * The feature version of the JDK we run on, which the forks run on unless given "jdks".
+     */
+    private static int currentFeatureVersion() {
+        try {
+            return Jdk.current().featureVersion();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Map<String, Options> createOptions(Map<String, RunSpecRow> runSpec) {
+        Map<String, Options> options = new LinkedHashMap<>();
 
+        for (String variant : runSpec.keySet()) {
             RunSpecRow data = runSpec.get(variant);
+            String benchmark = data.fanOut > 0 ? "runMainFanOut" : data.loader.equals("fresh") ? "runMainFresh"
+                    : data.setup.isEmpty() && data.operation.isEmpty() ? "runMain" : "runOperation";
+            if (data.latencyHistogram) {
+                benchmark += "Sampled";
+            }
+            ChainedOptionsBuilder optionsBuilder = data.settings.apply(new OptionsBuilder()
+                    .include(ClassLoaderBenchmark.class.getName() + "." + benchmark + "$")
+                    // One file per variant, as variants may be running at the same time
+                    .output("benchmark-output-" + RunMatrix.fileName(variant) + ".log")
+                    .shouldFailOnError(true));
+            if (data.jdk != null) {
+                optionsBuilder.jvm(data.jdk.java());
+            }
+            List<String> jvmArgs = new ArrayList<>(data.jvmArgs);
+            for (String profiler : data.profilers) {
+                if (profiler.equals("memory")) {
+                    optionsBuilder.addProfiler(MemoryProfiler.class);
+                } else if (profiler.equals("jfr")) {
+                    optionsBuilder.addProfiler(FlightRecorderProfiler.class);
+                    jvmArgs.add("-Dclassloading.jfrDir=" + Paths.get(System.getProperty("classloading.jfrDir", "jfr")).toAbsolutePath());
+                    jvmArgs.add("-Dclassloading.jfrSettings=" + System.getProperty("classloading.jfrSettings", "profile"));
+                } else {
+                    optionsBuilder.addProfiler(profiler);
+                }
+            }
+
             optionsBuilder.param("benchmarkIdentifier", variant);
             optionsBuilder.param("mainClass", data.mainClass);
+            optionsBuilder.param("setup", data.setup);
+            optionsBuilder.param("operation", data.operation);
             optionsBuilder.param("classPath", data.classPath);
+            optionsBuilder.param("output", data.output);
+            optionsBuilder.param("loaderPool", Integer.toString(data.loaderPool));
+            optionsBuilder.param("classLoader", data.classLoader);
+            optionsBuilder.param("threadCheck", Integer.toString(data.threadCheck));
+            optionsBuilder.param("phases", phasesFile(variant).toString());
+            if (data.fanOut > 0) {
+                optionsBuilder.param("concurrency", Integer.toString(data.fanOut));
+                optionsBuilder.param("executor", data.executor);
+                optionsBuilder.param("fanOut", fanOutFile(variant).toString());
+            }
+            if (data.latencyHistogram) {
+                optionsBuilder.param("latencies", latenciesFile(variant).toString());
+            }
+            if (!data.fixtures.isEmpty()) {
+                optionsBuilder.param("fixtures", Fixtures.toParam(data.fixtures));
+                optionsBuilder.param("fixtureIo", data.fixtureIo == null ? Fixtures.WARM : data.fixtureIo);
+            }
 
             String[] argsArray = new String[data.arguments.size()];
             data.arguments.toArray(argsArray);
             optionsBuilder.param("arguments", argsArray);
 
-            String[] jvmArgsArray = new String[data.jvmArgs.size()];
-            data.jvmArgs.toArray(jvmArgsArray);
+            String[] jvmArgsArray = new String[jvmArgs.size()];
+            jvmArgs.toArray(jvmArgsArray);
             optionsBuilder.jvmArgs(jvmArgsArray);
-            optionsBuilder.resultFormat(ResultFormatType.JSON);
-            optionsBuilder.result("result.json");
-            options.add(optionsBuilder.build());
+            // No JMH result file, the results of all variants go to the ResultSink
+            options.put(variant, optionsBuilder.build());
         }
 
         return options;
     }
 
+    /**
+     * Binds the main method of a class and its arguments into one method handle taking nothing.
+     * @param mainC the class with the main method
+     * @param args the arguments to always call main with
+     * @return a handle of type ()void
+     * @throws NoSuchMethodException if the class has no main method
+     * @throws IllegalAccessException
+     */
+    static MethodHandle bindMain(Class<?> mainC, String[] args) throws NoSuchMethodException, IllegalAccessException {
+        Method m = mainC.getDeclaredMethod("main", String[].class);
+        // The launcher does not care whether the class is public, neither do we
+        m.setAccessible(true);
+        MethodHandle main = MethodHandles.lookup().unreflect(m);
+        return MethodHandles.insertArguments(main, 0, new Object[] { args });
+    }
+
+    /**
+     * Sets up the entry point of a library and binds its operation into one method handle
+     * taking nothing, for the hot loop of a library instead of main. A program or variant with
+     * "entry-point": {"setup": "create"} gets create of the main class called once per fork,
+     * and then the Callable, Supplier or Runnable it returns over and over. With "operation":
+     * "parse" as well, parse of the object it returns is called instead, and with only
+     * "operation", the static method of that name. Both may be given as Class.method. What the
+     * operation returns goes to a Blackhole, so the JIT cannot drop the call.
+     * @param mainC the main class, where setup and operation are looked for unless they name a class
+     * @param setup the static method that creates the object to call the operation on, or ""
+     * @param operation the method to measure, or "" for the Callable, Supplier or Runnable setup returns
+     * @param args the arguments, passed to setup, or to a static operation, if it takes a String[]
+     * @return a handle of type ()Object
+     */
+    static MethodHandle bindOperation(Class<?> mainC, String setup, String operation, String[] args)
+            throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle call;
+        if (setup.isEmpty()) {
+            call = bindStatic(mainC, operation, args);
+        } else {
+            Object state;
+            try {
+                state = bindStatic(mainC, setup, args).invoke();
+            } catch (Throwable e) {
+                // Like Method.invoke, so that a failing setup is told apart from a missing one
+                throw new InvocationTargetException(e, setup + " of " + mainC.getName() + " failed");
+            }
+            if (state == null) {
+                throw new IllegalStateException(setup + " of " + mainC.getName() + " returned nothing to call");
+            }
+            if (!operation.isEmpty()) {
+                call = lookup.unreflect(instanceMethod(state.getClass(), operation)).bindTo(state);
+            } else if (state instanceof Callable) {
+                call = lookup.findVirtual(Callable.class, "call", MethodType.methodType(Object.class)).bindTo(state);
+            } else if (state instanceof Supplier) {
+                call = lookup.findVirtual(Supplier.class, "get", MethodType.methodType(Object.class)).bindTo(state);
+            } else if (state instanceof Runnable) {
+                call = lookup.findVirtual(Runnable.class, "run", MethodType.methodType(void.class)).bindTo(state);
+            } else {
+                throw new IllegalArgumentException(setup + " of " + mainC.getName() + " returned a " + state.getClass().getName()
+                        + ", which is no Callable, Supplier or Runnable, the entry-point needs an operation to call on it");
+            }
+        }
+        // Primitives are boxed and void returns null
+        return call.asType(MethodType.methodType(Object.class));
+    }
+
+    /**
+     * Binds a static method taking a String[] or nothing.
+     * @param name the name of a method of mainC, or Class.method
+     */
+    private static MethodHandle bindStatic(Class<?> mainC, String name, String[] args) throws ReflectiveOperationException {
+        Class<?> c = mainC;
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            c = Class.forName(name.substring(0, dot), true, mainC.getClassLoader());
+            name = name.substring(dot + 1);
+        }
+        Method m;
+        try {
+            m = c.getDeclaredMethod(name, String[].class);
+        } catch (NoSuchMethodException e) {
+            m = c.getDeclaredMethod(name);
+        }
+        if (!Modifier.isStatic(m.getModifiers())) {
+            throw new NoSuchMethodException(c.getName() + "." + name + " is not static");
+        }
+        m.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflect(m);
+        return m.getParameterCount() == 0 ? handle : MethodHandles.insertArguments(handle, 0, new Object[] { args });
+    }
+
+    /**
+     * A method taking nothing of a class or its superclasses, public or not.
+     */
+    private static Method instanceMethod(Class<?> c, String name) throws NoSuchMethodException {
+        try {
+            return c.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                try {
+                    Method m = k.getDeclaredMethod(name);
+                    m.setAccessible(true);
+                    return m;
+                } catch (NoSuchMethodException ignored) {
+                    // Try the superclass
+                }
+            }
+            throw new NoSuchMethodException(c.getName() + " has no method " + name + "()");
+        }
+    }
+
+    // Set by the states right before EntryPoint is initialized
+    private static MethodHandle pendingEntryPoint;
+
+    // How many forks have been started by runInterleaved, to number them across calls
+    private static int forkPosition;
+
+    /**
+     * The entry point of the program, as a static final method handle.
+     * Only those are constants to the JIT, which can then inline the call to main like a normal call.
+     * The class is initialized the first time a state installs its entry point, and there is only
+     * one program per forked JVM, so each fork gets its own constant.
+     */
+    static final class EntryPoint {
+        static final MethodHandle MAIN = pendingEntryPoint;
+    }
+
+    private static void installEntryPoint(MethodHandle main) {
+        pendingEntryPoint = main;
+        if (EntryPoint.MAIN != main) {
+            throw new IllegalStateException("A different entry point is already bound in this JVM, "
+                    + "external programs can only be benchmarked in forks");
+        }
+    }
+
+    // Set by the state right before Operation is initialized
+    private static MethodHandle pendingOperation;
+
+    /**
+     * The operation of an "entry-point", a constant to the JIT like {@link EntryPoint}.
+     */
+    static final class Operation {
+        static final MethodHandle CALL = pendingOperation;
+    }
+
+    private static void installOperation(MethodHandle operation) {
+        pendingOperation = operation;
+        if (Operation.CALL != operation) {
+            throw new IllegalStateException("A different operation is already bound in this JVM, "
+                    + "external programs can only be benchmarked in forks");
+        }
+    }
+
+    /**
+     * Where the forks of a variant leave the timings of their setup phases.
+     */
+    private static Path phasesFile(String variant) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "phases-" + RunMatrix.fileName(variant) + ".jsonl");
+    }
+
+    /**
+     * Where the forks of a variant leave what they saw of their fan-out.
+     */
+    private static Path fanOutFile(String variant) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "fan-out-" + RunMatrix.fileName(variant) + ".jsonl");
+    }
+
+    /**
+     * Where the forks of a variant leave the latency histograms of their calls.
+     */
+    private static Path latenciesFile(String variant) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "latencies-" + RunMatrix.fileName(variant) + ".jsonl");
+    }
+
     // We have a state which contains the main class of the program
     @State(Scope.Benchmark)
     public static class BenchmarkState {
@@ -213,51 +819,862 @@ public class ClassLoaderBenchmark {
         @Param("NO-MAIN")
         public String mainClass;
 
+        @Param("")
+        public String setup;
+
+        @Param("")
+        public String operation;
+
         @Param("NO-CLASSPATH")
         public String classPath;
 
         @Param("NONE")
         public String arguments;
 
-        Object[] argumentObjs;
-        Method mainMethod;
+        @Param("console")
+        public String output;
+
+        @Param("")
+        public String phases;
+
+        @Param("url")
+        public String classLoader;
+
+        @Param("100")
+        public int threadCheck;
+
+        @Param("")
+        public String fixtures;
+
+        @Param(Fixtures.WARM)
+        public String fixtureIo;
+
+        OutputCapture capture;
+        ClassLoader loader;
+        Fixtures inputs;
+        // The arguments with the paths of the fixtures in place
+        String[] args;
 
         public BenchmarkState() {}
 
+        /**
+         * Loads the main class one step at a time, timing each step, and binds its main method.
+         */
+        @Setup()
+        public void doSetup(BenchmarkParams params) throws ReflectiveOperationException, IOException, InterruptedException {
+            args = arguments.split(" ");
+            if (!fixtures.isEmpty()) {
+                inputs = new Fixtures(fixtures, fixtureIo);
+                inputs.prepareTrial();
+                args = Fixtures.resolve(args, inputs.paths());
+            }
+            long start = System.nanoTime();
+            loader = openClassPath(classPath, classLoader);
+            // Opens the jar and reads its index
+            loader.getResource(mainClass.replace('.', '/') + ".class");
+            long opened = System.nanoTime();
+            Class<?> mainC = Class.forName(mainClass, false, loader);
+            long defined = System.nanoTime();
+            // HotSpot links, and so verifies, a class before it hands out its methods
+            mainC.getDeclaredMethods();
+            long linked = System.nanoTime();
+            Class.forName(mainClass, true, loader);
+            long initialized = System.nanoTime();
+
+            if (!phases.isEmpty()) {
+                PhaseTimes.append(Paths.get(phases), arguments,
+                        opened - start, defined - opened, linked - defined, initialized - linked);
+            }
+
+            capture = OutputCapture.create(output);
+            if (capture != null) {
+                capture.install();
+            }
+            MethodHandle call;
+            if (setup.isEmpty() && operation.isEmpty()) {
+                installEntryPoint(bindMain(mainC, args));
+                call = EntryPoint.MAIN;
+            } else {
+                // Whatever setup prints is captured like the output of the operation
+                installOperation(bindOperation(mainC, setup, operation, args));
+                call = Operation.CALL;
+            }
+            // A fresh loader per call shares no static state between the threads
+            String benchmark = params.getBenchmark();
+            if (params.getThreads() > 1 && threadCheck > 0
+                    && (benchmark.endsWith(".runMain") || benchmark.endsWith(".runOperation"))) {
+                checkThreadSafety(params.getThreads(), call);
+            }
+        }
+
+        /**
+         * Calls main from all threads at once, so that a program that breaks when called
+         * concurrently fails here instead of being measured while it does something else.
+         */
+        private void checkThreadSafety(int threads, MethodHandle call) throws InterruptedException {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> callers = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                Thread caller = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < threadCheck; ++i) {
+                            call.invoke();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                caller.start();
+                callers.add(caller);
+            }
+            start.countDown();
+            for (Thread caller : callers) {
+                caller.join();
+            }
+            if (!failures.isEmpty()) {
+                throw new IllegalStateException(benchmarkIdentifier + " [" + arguments + "] failed when called from "
+                        + threads + " threads at once, it is not thread safe", failures.get(0));
+            }
+        }
+
+        /**
+         * Gives cold fixtures a fresh copy that is not in the page cache.
+         */
+        @Setup(Level.Iteration)
+        public void prepareIteration() throws IOException, InterruptedException {
+            if (inputs != null) {
+                inputs.prepareIteration();
+            }
+        }
+
+        @TearDown()
+        public void doTearDown() throws IOException {
+            if (capture != null) {
+                capture.restore();
+            }
+            closeLoader(loader);
+            if (inputs != null) {
+                inputs.close();
+            }
+        }
+    }
+
+    /**
+     * Class loaders for the program with "loader": "fresh", which gives every call a loader of its
+     * own instead of reusing the one that loaded the program, out of a pool of "loader-pool" (32
+     * by default). They are opened ahead of time so that the calls only pay for defining and
+     * initializing its classes, not for creating the loader and opening the jar.
+     * The main class of each call is loaded and its main method bound before the call, which
+     * still initializes it and loads every other class.
+     */
+    @State(Scope.Thread)
+    public static class LoaderPool {
+
+        @Param("NO-MAIN")
+        public String mainClass;
+
+        @Param("NO-CLASSPATH")
+        public String classPath;
+
+        @Param("32")
+        public int loaderPool;
+
+        @Param("url")
+        public String classLoader;
+
+        private final Deque<ClassLoader> pool = new ArrayDeque<>();
+        // The loader of the current call
+        ClassLoader loader;
+        // The main method of the current call, in that loader
+        MethodHandle main;
+
+        @Setup(Level.Iteration)
+        public void fill() throws IOException {
+            while (pool.size() < loaderPool) {
+                ClassLoader l = openClassPath(classPath, classLoader);
+                // Opens the jar and reads its index
+                l.getResource(mainClass.replace('.', '/') + ".class");
+                pool.add(l);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void take(BenchmarkState state) throws IOException, ReflectiveOperationException {
+            if (pool.isEmpty()) {
+                fill();
+            }
+            loader = pool.poll();
+            // Defines the class but leaves initializing it to the call
+            main = bindMain(Class.forName(mainClass, false, loader), state.args);
+        }
+
+        @TearDown(Level.Invocation)
+        public void release() throws IOException {
+            closeLoader(loader);
+            // Nothing may refer to the loader any more, or its classes stay in metaspace
+            loader = null;
+            main = null;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            for (ClassLoader l : pool) {
+                closeLoader(l);
+            }
+            pool.clear();
+        }
+    }
+
+    /**
+     * The executor of a fan-out, and the latencies of the calls it ran.
+     * Only the calls of measurement iterations are recorded, while pinning is counted for the
+     * whole fork, as the events arrive too late to tell which iteration they belong to.
+     */
+    @State(Scope.Benchmark)
+    public static class FanOutState {
+
+        @Param("NONE")
+        public String arguments;
+
+        @Param("1")
+        public int concurrency;
+
+        @Param(FanOut.PLATFORM)
+        public String executor;
+
+        @Param("")
+        public String fanOut;
+
+        ExecutorService pool;
+        FanOut.PinnedCounter pinned;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong operations = new AtomicLong();
+        // Time spent in measurement iterations
+        long nanos;
+        long iterationStart;
+        volatile boolean measuring;
+
+        @Setup(Level.Trial)
+        public void start() throws ReflectiveOperationException {
+            pool = FanOut.executor(executor, concurrency);
+            if (executor.equals(FanOut.VIRTUAL)) {
+                pinned = new FanOut.PinnedCounter();
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void startIteration(IterationParams params) {
+            measuring = params.getType() == IterationType.MEASUREMENT;
+            iterationStart = System.nanoTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stopIteration() {
+            if (measuring) {
+                nanos += System.nanoTime() - iterationStart;
+            }
+            measuring = false;
+        }
+
+        /**
+         * Submits the calls of one operation and waits for all of them.
+         */
+        void run() throws Throwable {
+            CountDownLatch done = new CountDownLatch(concurrency);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            boolean record = measuring;
+            for (int i = 0; i < concurrency; ++i) {
+                long submitted = System.nanoTime();
+                pool.execute(() -> {
+                    try {
+                        EntryPoint.MAIN.invokeExact();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        if (record) {
+                            latencies.record(System.nanoTime() - submitted);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (record) {
+                operations.incrementAndGet();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException, ReflectiveOperationException, InterruptedException {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            long pinnings = pinned == null ? 0 : pinned.stop();
+            if (!fanOut.isEmpty()) {
+                FanOut.append(Paths.get(fanOut), arguments, executor, concurrency, operations.get(), nanos, pinnings, latencies);
+            }
+        }
+    }
+
+    /**
+     * The latencies of every call in the measurement iterations of a fork, shared by its threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Latencies {
+
+        @Param("NONE")
+        public String arguments;
+
+        @Param("")
+        public String latencies;
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        volatile boolean measuring;
+
+        @Setup(Level.Iteration)
+        public void startIteration(IterationParams params) {
+            measuring = params.getType() == IterationType.MEASUREMENT;
+        }
+
+        void record(long nanos) {
+            if (measuring) {
+                histogram.record(nanos);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            if (!latencies.isEmpty()) {
+                LatencyHistogram.append(Paths.get(latencies), arguments, histogram);
+            }
+        }
+    }
+
+    @Benchmark
+    public void runMain(BenchmarkState state) throws Throwable {
+        EntryPoint.MAIN.invokeExact();
+    }
+
+    /**
+     * Calls main like runMain, and also times the call into the latency histogram.
+     */
+    @Benchmark
+    public void runMainSampled(BenchmarkState state, Latencies latencies) throws Throwable {
+        long start = System.nanoTime();
+        EntryPoint.MAIN.invokeExact();
+        latencies.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Calls the operation of an entry-point, set up once per fork instead of running main.
+     */
+    @Benchmark
+    public void runOperation(BenchmarkState state, Blackhole blackhole) throws Throwable {
+        blackhole.consume((Object) Operation.CALL.invokeExact());
+    }
+
+    /**
+     * Calls the operation like runOperation, and also times the call into the latency histogram.
+     */
+    @Benchmark
+    public void runOperationSampled(BenchmarkState state, Latencies latencies, Blackhole blackhole) throws Throwable {
+        long start = System.nanoTime();
+        Object result = (Object) Operation.CALL.invokeExact();
+        latencies.record(System.nanoTime() - start);
+        blackhole.consume(result);
+    }
+
+    /**
+     * Calls main concurrently from many threads per operation, see {@link FanOut}.
+     */
+    @Benchmark
+    public void runMainFanOut(BenchmarkState state, FanOutState fanOut) throws Throwable {
+        fanOut.run();
+    }
+
+    /**
+     * Calls main in a class loader of its own, so that no call sees what an earlier one loaded
+     * or left in static fields. The BenchmarkState still loads the program once, for the phase
+     * timings and the output capture.
+     */
+    @Benchmark
+    public void runMainFresh(BenchmarkState state, LoaderPool loaders) throws Throwable {
+        loaders.main.invokeExact();
+    }
+
+    /**
+     * A program that does nothing, for measuring what the harness itself costs per call.
+     */
+    public static class Noop {
+        public static void main(String[] args) {}
+    }
+
+    @State(Scope.Benchmark)
+    public static class CalibrationState {
         @Setup()
-        public void doSetup() throws NoSuchMethodException, FileNotFoundException, ClassNotFoundException {
-            Class mainC = loadClassFromJar(classPath, mainClass);
-            mainMethod = mainC.getDeclaredMethod("main", String[].class);
-            argumentObjs = arguments.split(" ");
+        public void doSetup() throws NoSuchMethodException, IllegalAccessException {
+            installEntryPoint(bindMain(Noop.class, new String[0]));
         }
     }
 
+    /**
+     * Calls an empty main method exactly the way runMain calls a real one, before the variants
+     * if -Dclassloading.calibrate=true.
+     * The score is the overhead of the harness per call, which can be subtracted from the scores of runMain.
+     */
     @Benchmark
-    public void runMain(BenchmarkState state) throws InvocationTargetException, IllegalAccessException {
-        System.out.println("Running: " + state.mainMethod.toString());
-        state.mainMethod.invoke(null, (Object[]) new String[][] {(String[]) state.argumentObjs});
+    public void calibrate(CalibrationState state) throws Throwable {
+        EntryPoint.MAIN.invokeExact();
+    }
+
+    /**
+     * What came out of running one variant, and where it ran.
+     */
+    static class VariantResult {
+        public String variant;
+        public CpuSlot slot;
+        public Collection<RunResult> results;
+        // Secondary results of the setup phases, by arguments
+        public Map<String, JSONObject> phases;
+        // How long the variant ran
+        public long nanos;
+        // Where each fork came in the interleaved order, by arguments, or null if not interleaved
+        public Map<String, List<Integer>> forkOrder;
+        // Summaries of the flight recordings, by arguments
+        public Map<String, JSONObject> recordings = Collections.emptyMap();
+        // What the forks saw of their fan-out, by arguments
+        public Map<String, JSONObject> fanOut = Collections.emptyMap();
+        // The latency histograms of all forks merged, by arguments
+        public Map<String, LatencyHistogram> latencies = Collections.emptyMap();
+    }
+
+    /**
+     * Runs the variants, several at a time if we were given more than one CPU slot, or their
+     * forks taking turns with -Dclassloading.interleave=roundrobin or =random, see runInterleaved.
+     * @param options the options of every variant
+     * @param slots disjoint CPU sets to pin the forks to, empty to run one variant at a time unpinned
+     * @param onFinished called with the results of each variant as soon as it is done
+     * @throws RunnerException
+     */
+    private static void runVariants(Map<String, Options> options, List<CpuSlot> slots,
+                                    Consumer<VariantResult> onFinished) throws RunnerException {
+        String interleave = System.getProperty("classloading.interleave");
+        if (interleave != null && options.size() > 1) {
+            if (!slots.isEmpty()) {
+                System.err.println("Interleaved forks run one at a time, ignoring classloading.parallel");
+            }
+            runInterleaved(options, interleave, onFinished);
+            return;
+        }
+        if (slots.isEmpty()) {
+            for (Map.Entry<String, Options> o : options.entrySet()) {
+                onFinished.accept(runVariant(o.getKey(), o.getValue(), null));
+            }
+            return;
+        }
+
+        // JMH refuses to start if it sees another instance holding its lock file,
+        // which is exactly what we are doing on purpose here.
+        System.setProperty("jmh.ignoreLock", "true");
+
+        BlockingQueue<CpuSlot> freeSlots = new LinkedBlockingQueue<>(slots);
+        ExecutorService pool = Executors.newFixedThreadPool(slots.size());
+        List<Future<?>> pending = new ArrayList<>();
+        for (Map.Entry<String, Options> o : options.entrySet()) {
+            pending.add(pool.submit(() -> {
+                CpuSlot slot = freeSlots.take();
+                VariantResult result;
+                try {
+                    result = runVariant(o.getKey(), o.getValue(), slot);
+                } finally {
+                    freeSlots.put(slot);
+                }
+                onFinished.accept(result);
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        try {
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new RunnerException("Interrupted while waiting for variants", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            throw new RunnerException("Variant failed", e.getCause());
+        }
     }
 
-    public static void main(String[] args) throws RunnerException, FileNotFoundException {
-        Map<String, RunSpecRow> runsSpecs = benchmarkSpecToRuns(loadBenchmarkSpec(Paths.get(args[0])));
-        List<Options> opts = createOptions(runsSpecs);
+    /**
+     * Runs the forks of all variants one at a time, taking turns between the variants, and
+     * merges the forks of each variant afterwards.
+     * (A1 B1 C1 A2 B2 C2 ...), so that the machine heating up does not favor the first variants.
+     * @param order "roundrobin" for the same order every turn, or "random" to shuffle every turn,
+     * seeded by -Dclassloading.seed
+     */
+    private static void runInterleaved(Map<String, Options> options, String order,
+                                       Consumer<VariantResult> onFinished) throws RunnerException {
+        if (!order.equals("roundrobin") && !order.equals("random")) {
+            throw new IllegalArgumentException("Unknown interleave order " + order + ", expected roundrobin or random");
+        }
+        Random random = new Random(Long.getLong("classloading.seed", 42));
+        int turns = 0;
+        for (Options o : options.values()) {
+            turns = Math.max(turns, o.getForkCount().orElse(1));
+        }
 
-        ArrayList<RunResult> results = new ArrayList<>();
+        // By variant and arguments: the forks, where each came in the order, and the params of the run
+        Map<String, Map<String, List<BenchmarkResult>>> forks = new LinkedHashMap<>();
+        Map<String, Map<String, List<Integer>>> positions = new LinkedHashMap<>();
+        Map<String, Map<String, BenchmarkParams>> params = new LinkedHashMap<>();
+        Map<String, Long> nanos = new HashMap<>();
+        try {
+            for (String variant : options.keySet()) {
+                forks.put(variant, new LinkedHashMap<>());
+                positions.put(variant, new LinkedHashMap<>());
+                params.put(variant, new LinkedHashMap<>());
+                nanos.put(variant, 0L);
+                Files.deleteIfExists(phasesFile(variant));
+                Files.deleteIfExists(fanOutFile(variant));
+                Files.deleteIfExists(latenciesFile(variant));
+                JfrSummary.clear(JfrSummary.directory(variant));
+            }
+
+            for (int turn = 0; turn < turns; ++turn) {
+                List<String> variants = new ArrayList<>();
+                for (Map.Entry<String, Options> o : options.entrySet()) {
+                    if (o.getValue().getForkCount().orElse(1) > turn) {
+                        variants.add(o.getKey());
+                    }
+                }
+                if (order.equals("random")) {
+                    Collections.shuffle(variants, random);
+                }
+                for (String variant : variants) {
+                    Options fork = new OptionsBuilder().parent(options.get(variant))
+                            .forks(1)
+                            .output("benchmark-output-" + RunMatrix.fileName(variant) + "-" + turn + ".log")
+                            .build();
+                    int position = forkPosition++;
+                    long start = System.nanoTime();
+                    for (RunResult result : new Runner(fork).run()) {
+                        String arguments = result.getParams().getParam("arguments");
+                        params.get(variant).putIfAbsent(arguments, result.getParams());
+                        for (BenchmarkResult b : result.getBenchmarkResults()) {
+                            forks.get(variant).computeIfAbsent(arguments, k -> new ArrayList<>()).add(b);
+                            positions.get(variant).computeIfAbsent(arguments, k -> new ArrayList<>()).add(position);
+                        }
+                    }
+                    nanos.put(variant, nanos.get(variant) + System.nanoTime() - start);
+                }
+            }
 
-        for (Options o : opts) {
-            Runner r = new Runner(o);
-            results.addAll(r.run());
+            for (String variant : options.keySet()) {
+                VariantResult result = new VariantResult();
+                result.variant = variant;
+                result.results = new ArrayList<>();
+                for (Map.Entry<String, List<BenchmarkResult>> e : forks.get(variant).entrySet()) {
+                    result.results.add(new RunResult(params.get(variant).get(e.getKey()), e.getValue()));
+                }
+                result.forkOrder = positions.get(variant);
+                result.nanos = nanos.get(variant);
+                result.phases = PhaseTimes.read(phasesFile(variant));
+                Files.deleteIfExists(phasesFile(variant));
+                result.fanOut = FanOut.read(fanOutFile(variant));
+                Files.deleteIfExists(fanOutFile(variant));
+                result.latencies = LatencyHistogram.read(latenciesFile(variant));
+                Files.deleteIfExists(latenciesFile(variant));
+                result.recordings = JfrSummary.summarize(JfrSummary.directory(variant), java(options.get(variant)),
+                        forks.get(variant).keySet());
+                onFinished.accept(result);
+            }
+        } catch (IOException e) {
+            throw new RunnerException("Could not read the phase timings, recordings or fan-outs", e);
         }
+    }
 
-        for (RunResult result : results) {
-            double score = result.getAggregatedResult().getPrimaryResult().getScore();
-            double[] confidence = result.getAggregatedResult().getPrimaryResult().getScoreConfidence();
-            String variantLabel = result.getParams().getParam("benchmarkIdentifier");
+    /**
+     * The java the forks of a variant run with.
+     */
+    private static String java(Options o) {
+        return o.getJvm().orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    }
+
+    static VariantResult runVariant(String variant, Options o, CpuSlot slot) throws RunnerException {
+        String java = java(o);
+        if (slot != null) {
+            try {
+                Path launcher = slot.launcher(java);
+                if (launcher != null) {
+                    o = new OptionsBuilder().parent(o).jvm(launcher.toString()).build();
+                } else {
+                    System.err.println("Neither numactl nor taskset found, " + variant + " runs unpinned");
+                    slot = null;
+                }
+            } catch (IOException e) {
+                throw new RunnerException("Could not create launcher for " + variant, e);
+            }
+        }
+
+        VariantResult result = new VariantResult();
+        result.variant = variant;
+        result.slot = slot;
+        Path phases = phasesFile(variant);
+        Path fanOut = fanOutFile(variant);
+        Path latencies = latenciesFile(variant);
+        try {
+            Files.deleteIfExists(phases);
+            Files.deleteIfExists(fanOut);
+            Files.deleteIfExists(latencies);
+            JfrSummary.clear(JfrSummary.directory(variant));
+            long start = System.nanoTime();
+            result.results = new Runner(o).run();
+            result.nanos = System.nanoTime() - start;
+            result.phases = PhaseTimes.read(phases);
+            Files.deleteIfExists(phases);
+            result.fanOut = FanOut.read(fanOut);
+            Files.deleteIfExists(fanOut);
+            result.latencies = LatencyHistogram.read(latencies);
+            Files.deleteIfExists(latencies);
+            List<String> arguments = new ArrayList<>();
+            for (RunResult r : result.results) {
+                arguments.add(r.getParams().getParam("arguments"));
+            }
+            result.recordings = JfrSummary.summarize(JfrSummary.directory(variant), java, arguments);
+        } catch (IOException e) {
+            throw new RunnerException("Could not read the phase timings, recordings or fan-outs of " + variant, e);
+        }
+        return result;
+    }
+
+    /**
+     * Prints a one line summary of each record of a variant.
+     */
+    private static void printSummary(List<JSONObject> records) {
+        for (JSONObject record : records) {
             JSONObject o = new JSONObject();
-            o.append("name", variantLabel);
-            o.append("score", score);
-            o.append("confidence", Arrays.asList(confidence));
+            o.append("name", record.getString("variant"));
+            o.append("score", record.getDouble("score"));
+            o.append("confidence", record.getJSONArray("confidence"));
+            // So we can tell which results may have been disturbed by their neighbours
+            o.append("cpus", record.get("cpus"));
+            o.append("node", record.get("node"));
+            if (record.has("latency")) {
+                o.append("latency", record.get("latency"));
+            }
+            if (record.optBoolean("cached")) {
+                o.append("cached", true);
+            }
             System.out.println(o.toString());
         }
     }
+
+    /**
+     * Runs every variant once, and then more rounds of the least certain ones until the budget runs out.
+     * @param deadline the System.nanoTime() by which the last round has to be done
+     * @param save called with the pooled records of a variant after each of its rounds
+     * @return the records of all rounds, pooled per variant
+     */
+    private static Map<String, List<JSONObject>> runWithinBudget(Map<String, RunSpecRow> runSpec, List<CpuSlot> slots,
+                                                                 long deadline, double targetWidth,
+                                                                 BiConsumer<String, List<JSONObject>> save) throws RunnerException {
+        Map<String, Options> options = createOptions(runSpec);
+        BudgetScheduler scheduler = new BudgetScheduler(targetWidth);
+        Consumer<VariantResult> addRound = variantResult -> {
+            RunSpecRow row = runSpec.get(variantResult.variant);
+            List<JSONObject> records = ResultSink.toRecords(variantResult, row.settings);
+            // The scheduler compares variants of the same program and arguments
+            row.addCoordinates(records);
+            save.accept(variantResult.variant, scheduler.add(variantResult.variant, records, variantResult.nanos));
+        };
+        runVariants(options, slots, addRound);
+
+        List<String> round;
+        while (!(round = scheduler.next(Math.max(1, slots.size()), deadline - System.nanoTime())).isEmpty()) {
+            System.out.println("Measuring " + String.join(", ", round) + " again, "
+                    + TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime()) + "s of the budget left");
+            Map<String, Options> roundOptions = new LinkedHashMap<>();
+            for (String variant : round) {
+                roundOptions.put(variant, options.get(variant));
+            }
+            runVariants(roundOptions, slots, addRound);
+        }
+        return scheduler.results();
+    }
+
+    /**
+     * Saves the records of a finished variant everywhere they should go.
+     * @param cacheKey where to store the records in the cache, null to not store them
+     */
+    private static void finishVariant(ResultSink sink, ResultCache cache, String cacheKey,
+                                      String variant, RunSpecRow row, List<JSONObject> records) {
+        if (row != null) {
+            row.addCoordinates(records);
+        }
+        saveVariant(sink, cache, cacheKey, variant, records);
+        printSummary(records);
+    }
+
+    /**
+     * Writes the records of a variant to the results file and the cache.
+     * @param cacheKey where to store the records in the cache, null to not store them
+     */
+    private static void saveVariant(ResultSink sink, ResultCache cache, String cacheKey,
+                                    String variant, List<JSONObject> records) {
+        try {
+            if (cache != null && cacheKey != null) {
+                cache.store(cacheKey, records);
+            }
+            sink.write(variant, records);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The CPUs to run variants on side by side, as asked for by -Dclassloading.parallel.
+     * @return no slots to run one variant at a time
+     */
+    static List<CpuSlot> slotsFromProperties() throws IOException {
+        List<CpuSlot> slots = new ArrayList<>();
+        int parallelism = Integer.getInteger("classloading.parallel", 1);
+        if (parallelism > 1) {
+            slots = CpuSlot.partition(parallelism,
+                    Integer.getInteger("classloading.cpusPerVariant", 0),
+                    Integer.getInteger("classloading.reservedCpus", 1));
+            if (slots.size() < 2) {
+                System.err.println("Not enough CPUs to run variants in parallel, running them one at a time");
+                slots.clear();
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * How many CPUs a fork can run on: those of the smallest slot, or the whole machine if the
+     * forks are not pinned.
+     */
+    static int cpusPerFork(List<CpuSlot> slots) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (CpuSlot slot : slots) {
+            cpus = Math.min(cpus, slot.cpus.size());
+        }
+        return cpus;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException, InterruptedException {
+        long started = System.nanoTime();
+        List<CpuSlot> slots = slotsFromProperties();
+        Map<String, RunSpecRow> runsSpecs = benchmarkSpecToRuns(loadBenchmarkSpec(Paths.get(args[0])), RunMatrix.fromProperties(),
+                cpusPerFork(slots));
+
+        String cacheDir = System.getProperty("classloading.cache");
+        ResultCache cache = null;
+        if (!"none".equals(cacheDir)) {
+            cache = new ResultCache(cacheDir == null ? ResultCache.defaultDirectory() : Paths.get(cacheDir));
+        }
+
+        Path resultsFile = Paths.get(System.getProperty("classloading.results", "results.jsonl"));
+        try (ResultSink sink = new ResultSink(resultsFile, Boolean.getBoolean("classloading.resume"))) {
+            for (String variant : sink.finishedVariants()) {
+                if (runsSpecs.remove(variant) != null) {
+                    System.err.println("Skipping " + variant + ", already in " + resultsFile);
+                }
+            }
+
+            Map<String, String> cacheKeys = new HashMap<>();
+            if (cache != null) {
+                Iterator<String> it = runsSpecs.keySet().iterator();
+                while (it.hasNext()) {
+                    String variant = it.next();
+                    RunSpecRow row = runsSpecs.get(variant);
+                    String key = cache.key(variant, row.fields(), ClassPath.split(row.classPath));
+                    List<JSONObject> cached = cache.load(key);
+                    if (cached == null) {
+                        cacheKeys.put(variant, key);
+                        continue;
+                    }
+                    for (JSONObject record : cached) {
+                        record.put("cached", true);
+                    }
+                    sink.write(variant, cached);
+                    printSummary(cached);
+                    it.remove();
+                }
+            }
+
+            if (Boolean.getBoolean("classloading.calibrate")) {
+                Options calibration = new OptionsBuilder()
+                        .include(ClassLoaderBenchmark.class.getName() + ".calibrate")
+                        .mode(Mode.AverageTime)
+                        .warmupIterations(2)
+                        .measurementIterations(3)
+                        .forks(1)
+                        .output("benchmark-output-calibration.log")
+                        .shouldFailOnError(true)
+                        .build();
+                Map<String, Options> calibrationOnly = new LinkedHashMap<>();
+                calibrationOnly.put("calibration", calibration);
+                runVariants(calibrationOnly, Collections.emptyList(), variantResult ->
+                        finishVariant(sink, null, null, variantResult.variant, null, ResultSink.toRecords(variantResult, null)));
+            }
+
+            // Startup variants launch their own JVMs, one after the other so they do not disturb each other
+            StartupBenchmark startup = null;
+            Iterator<Map.Entry<String, RunSpecRow>> it = runsSpecs.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, RunSpecRow> e = it.next();
+                if (e.getValue().startupRuns > 0) {
+                    if (startup == null) {
+                        startup = new StartupBenchmark();
+                    }
+                    List<JSONObject> records = startup.run(e.getKey(), e.getValue());
+                    finishVariant(sink, cache, cacheKeys.get(e.getKey()), e.getKey(), e.getValue(), records);
+                    it.remove();
+                }
+            }
+
+            String budget = System.getProperty("classloading.budget");
+            if (budget != null) {
+                long deadline = started + TimeValue.fromString(budget).convertTo(TimeUnit.NANOSECONDS);
+                double targetWidth = Double.parseDouble(System.getProperty("classloading.targetWidth", "0.02"));
+                // Every round writes the variant again, superseding the records of its earlier rounds
+                final ResultCache finalCache = cache;
+                Map<String, List<JSONObject>> results = runWithinBudget(runsSpecs, slots, deadline, targetWidth,
+                        (variant, records) -> saveVariant(sink, finalCache, cacheKeys.get(variant), variant, records));
+                for (List<JSONObject> records : results.values()) {
+                    printSummary(records);
+                }
+            } else {
+                final ResultCache finalCache = cache;
+                runVariants(createOptions(runsSpecs), slots, variantResult -> {
+                    RunSpecRow row = runsSpecs.get(variantResult.variant);
+                    finishVariant(sink, finalCache, cacheKeys.get(variantResult.variant),
+                            variantResult.variant, row, ResultSink.toRecords(variantResult, row.settings));
+                });
+            }
+        }
+
+        ScalingReport.print(ScalingReport.write(resultsFile, Paths.get(System.getProperty("classloading.scaling", "scaling.json"))));
+        ThreadSweep.print(ThreadSweep.write(resultsFile, Paths.get(System.getProperty("classloading.threadReport", "thread-sweep.json"))));
+        JdkComparison.print(JdkComparison.write(resultsFile, Paths.get(System.getProperty("classloading.jdkTable", "jdk-speedup.json"))));
+        GcReport.print(GcReport.write(resultsFile, Paths.get(System.getProperty("classloading.gcReport", "gc-matrix.json"))));
+        FanOut.print(FanOut.write(resultsFile, Paths.get(System.getProperty("classloading.fanOutReport", "fan-out.json"))));
+        Fixtures.print(Fixtures.write(resultsFile, Paths.get(System.getProperty("classloading.fixtureReport", "fixture-io.json"))));
+
+        String baseline = System.getProperty("classloading.baseline");
+        if (baseline != null) {
+            int result = RegressionGate.gate(Paths.get(baseline), resultsFile);
+            if (result != RegressionGate.PASSED) {
+                System.exit(result);
+            }
+        }
+    }
 }
@@ -0,0 +1,126 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Turns the "classpath" of a variant into the jars and class directories it stands for.
+ *
+ * The classpath is a string, or a list of strings, each of which is one of
+ * <ul>
+ *     <li>a jar</li>
+ *     <li>a directory of classes</li>
+ *     <li>a directory with jars at its top, meaning all jars in it</li>
+ *     <li>a glob, e.g. "lib/*.jar" or "modules/**&#47;*.jar", meaning all files it matches</li>
+ * </ul>
+ * Strings may also hold several entries separated by the path separator, as for java -cp.
+ * The entries of a directory or glob are sorted by name, so the order does not depend on the
+ * file system. The result is joined with the path separator again, which is how it is passed to
+ * the forks and to java -cp.
+ */
+class ClassPath {
+
+    /**
+     * Resolves the "classpath" of a spec, a string or an array of strings.
+     * @return the absolute entries, joined with the path separator
+     */
+    static String resolve(Object classPath) throws IOException {
+        List<String> specs = new ArrayList<>();
+        if (classPath instanceof JSONArray) {
+            JSONArray array = (JSONArray) classPath;
+            for (int i = 0; i < array.length(); ++i) {
+                specs.add(array.getString(i));
+            }
+        } else {
+            specs.add(classPath.toString());
+        }
+
+        List<String> entries = new ArrayList<>();
+        for (String spec : specs) {
+            for (String entry : spec.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    for (Path path : expand(entry)) {
+                        entries.add(path.toString());
+                    }
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("The classpath " + classPath + " is empty");
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * The entries of a resolved classpath.
+     */
+    static List<Path> split(String classPath) {
+        List<Path> entries = new ArrayList<>();
+        for (String entry : classPath.split(File.pathSeparator)) {
+            entries.add(Paths.get(entry));
+        }
+        return entries;
+    }
+
+    private static List<Path> expand(String entry) throws IOException {
+        int glob = firstGlobCharacter(entry);
+        if (glob >= 0) {
+            // Walk from the last directory before the first wildcard
+            int slash = Math.max(entry.lastIndexOf('/', glob), entry.lastIndexOf(File.separatorChar, glob));
+            Path base = Paths.get(slash < 0 ? "." : entry.substring(0, slash + 1)).toAbsolutePath().normalize();
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + entry.substring(slash + 1));
+            List<Path> matches;
+            try (Stream<Path> files = Files.walk(base)) {
+                matches = files.filter(p -> Files.isRegularFile(p) && matcher.matches(base.relativize(p)))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            if (matches.isEmpty()) {
+                throw new FileNotFoundException("Nothing on the classpath matches " + entry);
+            }
+            return matches;
+        }
+
+        Path path = Paths.get(entry).toAbsolutePath().normalize();
+        if (!Files.exists(path)) {
+            throw new FileNotFoundException(entry);
+        }
+        if (!Files.isDirectory(path)) {
+            return Collections.singletonList(path);
+        }
+        List<Path> jars = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*.jar")) {
+            for (Path jar : files) {
+                jars.add(jar);
+            }
+        }
+        if (jars.isEmpty()) {
+            return Collections.singletonList(path);
+        }
+        Collections.sort(jars);
+        return jars;
+    }
+
+    private static int firstGlobCharacter(String entry) {
+        for (int i = 0; i < entry.length(); ++i) {
+            if ("*?[{".indexOf(entry.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
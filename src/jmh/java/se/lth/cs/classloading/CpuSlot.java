@@ -0,0 +1,236 @@
+package se.lth.cs.classloading;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * A set of CPUs on which one variant fork is allowed to run.
+ *
+ * Slots are handed out by the parallel scheduler in {@link ClassLoaderBenchmark}, no two
+ * variants running at the same time share a slot. Pinning is done by launching the forked JVM
+ * through a small wrapper script, since JMH only lets us choose which java binary to run.
+ *
+ * -Dclassloading.parallel=&lt;n&gt; asks for n slots, -Dclassloading.cpusPerVariant for their size
+ * (the machine divided evenly by default) and -Dclassloading.reservedCpus for how many CPUs to
+ * leave to the OS and the host JVM (1 by default).
+ */
+class CpuSlot {
+    /** The NUMA node the CPUs belong to, -1 if unknown. */
+    final int node;
+    final List<Integer> cpus;
+
+    CpuSlot(int node, List<Integer> cpus) {
+        this.node = node;
+        this.cpus = cpus;
+    }
+
+    /**
+     * The CPUs in the format taskset and numactl understand, e.g. "4,5,6,7".
+     */
+    String cpuList() {
+        StringBuilder sb = new StringBuilder();
+        for (int cpu : cpus) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(cpu);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a script that starts the given JVM pinned to this slot.
+     * numactl is preferred as it also binds memory to the node, taskset is the fallback.
+     * @param java path of the java binary the fork should run
+     * @return the script, or null if no pinning tool is installed
+     */
+    Path launcher(String java) throws IOException {
+        String prefix;
+        if (node >= 0 && onPath("numactl")) {
+            prefix = "numactl --physcpubind=" + cpuList() + " --membind=" + node;
+        } else if (onPath("taskset")) {
+            prefix = "taskset -c " + cpuList();
+        } else {
+            return null;
+        }
+
+        Path script = Files.createTempFile("jmh-cpus-" + cpus.get(0) + "-", ".sh");
+        String content = "#!/bin/sh\nexec " + prefix + " \"" + java + "\" \"$@\"\n";
+        Files.write(script, content.getBytes(StandardCharsets.UTF_8));
+        script.toFile().setExecutable(true);
+        script.toFile().deleteOnExit();
+        return script;
+    }
+
+    @Override
+    public String toString() {
+        return "node " + node + " cpus " + cpuList();
+    }
+
+    private static boolean onPath(String tool) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            if (new File(dir, tool).canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits the machine into disjoint slots.
+     * A slot never spans two NUMA nodes when it fits in one, and the first reservedCpus
+     * CPUs are left alone for the OS and the host JVM, to keep noise away from the forks.
+     * @param slots how many slots we would like
+     * @param cpusPerSlot how many CPUs each slot gets, 0 to divide the machine evenly
+     * @param reservedCpus how many CPUs not to hand out
+     * @return the slots, possibly fewer than asked for if the machine is too small, and none if
+     * we cannot tell which CPUs we may use
+     */
+    static List<CpuSlot> partition(int slots, int cpusPerSlot, int reservedCpus) {
+        Map<Integer, List<Integer>> nodes = readNodes();
+        if (nodes.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        int usable = -reservedCpus;
+        for (List<Integer> cpus : nodes.values()) {
+            usable += cpus.size();
+        }
+        if (cpusPerSlot <= 0) {
+            cpusPerSlot = Math.max(1, usable / slots);
+        }
+
+        List<CpuSlot> result = new ArrayList<>();
+        int toSkip = reservedCpus;
+        List<Integer> leftovers = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> node : nodes.entrySet()) {
+            List<Integer> free = new ArrayList<>();
+            for (int cpu : node.getValue()) {
+                if (toSkip > 0) {
+                    --toSkip;
+                } else {
+                    free.add(cpu);
+                }
+            }
+            while (free.size() >= cpusPerSlot && result.size() < slots) {
+                result.add(new CpuSlot(node.getKey(), new ArrayList<>(free.subList(0, cpusPerSlot))));
+                free = free.subList(cpusPerSlot, free.size());
+            }
+            leftovers.addAll(free);
+        }
+        // Slots bigger than a node have to span several of them
+        while (leftovers.size() >= cpusPerSlot && result.size() < slots) {
+            result.add(new CpuSlot(-1, new ArrayList<>(leftovers.subList(0, cpusPerSlot))));
+            leftovers = leftovers.subList(cpusPerSlot, leftovers.size());
+        }
+        return result;
+    }
+
+    /**
+     * Reads the CPUs of every NUMA node from sysfs, keeping those this process may run on.
+     * Machines without that information are treated as a single node of the allowed CPUs.
+     * @return the nodes, none if we cannot tell which CPUs we may use
+     */
+    private static Map<Integer, List<Integer>> readNodes() {
+        Map<Integer, List<Integer>> nodes = new TreeMap<>();
+        List<Integer> allowed = allowedCpus();
+        if (allowed == null || allowed.isEmpty()) {
+            System.err.println("Could not tell which CPUs this process may run on, not pinning variants to CPUs");
+            return nodes;
+        }
+        File[] nodeDirs = new File("/sys/devices/system/node").listFiles();
+        if (nodeDirs != null) {
+            for (File dir : nodeDirs) {
+                if (!dir.getName().matches("node\\d+")) {
+                    continue;
+                }
+                try {
+                    String cpuList = new String(Files.readAllBytes(Paths.get(dir.getPath(), "cpulist")),
+                            StandardCharsets.UTF_8).trim();
+                    List<Integer> cpus = parseCpuList(cpuList);
+                    cpus.retainAll(allowed);
+                    if (!cpus.isEmpty()) {
+                        nodes.put(Integer.parseInt(dir.getName().substring(4)), cpus);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (nodes.isEmpty()) {
+            nodes.put(-1, allowed);
+        }
+        return nodes;
+    }
+
+    /**
+     * The CPUs this process may run on, which in a container or under taskset need not be the
+     * first availableProcessors() ones. Read from /proc/self/status, or asked of taskset.
+     * @return the CPUs, or null if neither knows
+     */
+    private static List<Integer> allowedCpus() {
+        try (Stream<String> lines = Files.lines(Paths.get("/proc/self/status"))) {
+            String line = lines.filter(l -> l.startsWith("Cpus_allowed_list:")).findFirst().orElse(null);
+            if (line != null) {
+                return parseCpuList(line.substring(line.indexOf(':') + 1).trim());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or a format we do not know, taskset may still tell
+        }
+        if (!onPath("taskset")) {
+            return null;
+        }
+        try {
+            String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+            Process taskset = new ProcessBuilder("taskset", "-cp", pid).redirectErrorStream(true).start();
+            String line;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(taskset.getInputStream(), StandardCharsets.UTF_8))) {
+                // pid 1234's current affinity list: 0-3,8
+                line = reader.readLine();
+            }
+            if (taskset.waitFor() != 0 || line == null || line.indexOf(':') < 0) {
+                return null;
+            }
+            return parseCpuList(line.substring(line.indexOf(':') + 1).trim());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Parses the kernel's cpulist format, e.g. "0-3,8-11".
+     */
+    static List<Integer> parseCpuList(String cpuList) {
+        List<Integer> cpus = new ArrayList<>();
+        if (cpuList.isEmpty()) {
+            return cpus;
+        }
+        for (String range : cpuList.split(",")) {
+            String[] bounds = range.split("-");
+            int from = Integer.parseInt(bounds[0].trim());
+            int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+            for (int cpu = from; cpu <= to; ++cpu) { cpus.add(cpu); }
+        }
+        return cpus;
+    }
+}
@@ -0,0 +1,254 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs main as many concurrent calls at once, for programs that handle requests.
+ *
+ * A program or variant with
+ * <pre>
+ * "fan-out": {"concurrency": 1000, "executors": ["virtual", "platform"]}
+ * </pre>
+ * makes every operation JMH measures submit that many calls of main at once and wait for all of
+ * them. The executors are an axis of the run matrix: "virtual" starts a virtual thread per call
+ * (JDK 21 and later, runs on older JDKs are left out), "platform" runs them on a pool of as many
+ * platform threads as the concurrency. Each call's latency, from being submitted to returning,
+ * is recorded in a {@link LatencyHistogram}, and on virtual threads every time a virtual thread
+ * was pinned to its carrier is counted through a flight recording stream.
+ *
+ * The forks append what they saw to a file, which the host merges into a "fanOut" object in the
+ * record: calls per second, percentiles of the latency and pinning events. The report puts the
+ * virtual threads next to the platform threads of the same run, in -Dclassloading.fanOutReport
+ * (fan-out.json by default).
+ */
+class FanOut {
+    static final String VIRTUAL = "virtual";
+    static final String PLATFORM = "platform";
+
+    /**
+     * The executor a fork fans out to.
+     */
+    static ExecutorService executor(String kind, int concurrency) {
+        if (kind.equals(PLATFORM)) {
+            return Executors.newFixedThreadPool(concurrency);
+        }
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("This JVM has no virtual threads, fan-out on them needs JDK 21 or later", e);
+        }
+    }
+
+    /**
+     * Whether the forks of a JDK can fan out to an executor.
+     * @param featureVersion the major version of the JDK, 0 if not known, which we let try
+     */
+    static boolean supports(String kind, int featureVersion) {
+        return kind.equals(PLATFORM) || featureVersion == 0 || featureVersion >= 21;
+    }
+
+    static List<String> executors(JSONObject fanOut) {
+        List<String> executors = new ArrayList<>();
+        JSONArray names = fanOut.optJSONArray("executors");
+        if (names == null) {
+            executors.add(VIRTUAL);
+            executors.add(PLATFORM);
+            return executors;
+        }
+        for (int i = 0; i < names.length(); ++i) {
+            String name = names.getString(i);
+            if (!name.equals(VIRTUAL) && !name.equals(PLATFORM)) {
+                throw new IllegalArgumentException("Unknown executor " + name + ", expected virtual or platform");
+            }
+            executors.add(name);
+        }
+        return executors;
+    }
+
+    /**
+     * Counts the jdk.VirtualThreadPinned events of this JVM, through the JFR streaming API of
+     * JDK 14 and later, which we can only reach by reflection.
+     */
+    static class PinnedCounter {
+        private final AtomicLong pinned = new AtomicLong();
+        private final Object stream;
+
+        PinnedCounter() throws ReflectiveOperationException {
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class).invoke(stream, "jdk.VirtualThreadPinned");
+            // Every pinning counts, not only those longer than the default 20 ms
+            settings.getClass().getMethod("withThreshold", Duration.class).invoke(settings, Duration.ZERO);
+            Consumer<Object> count = event -> pinned.incrementAndGet();
+            streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, "jdk.VirtualThreadPinned", count);
+            streamClass.getMethod("startAsync").invoke(stream);
+        }
+
+        /**
+         * Stops the stream, once it has delivered everything recorded so far.
+         * @return the number of pinning events
+         */
+        long stop() throws ReflectiveOperationException {
+            stream.getClass().getMethod("stop").invoke(stream);
+            stream.getClass().getMethod("close").invoke(stream);
+            return pinned.get();
+        }
+    }
+
+    /**
+     * Appends what one fork saw, called from its teardown.
+     */
+    static void append(Path file, String arguments, String executor, int concurrency, long operations,
+                       long nanos, long pinned, LatencyHistogram latencies) throws IOException {
+        JSONObject line = new JSONObject();
+        line.put("arguments", arguments);
+        line.put("executor", executor);
+        line.put("concurrency", concurrency);
+        line.put("operations", operations);
+        line.put("nanos", nanos);
+        line.put("pinned", pinned);
+        line.put("histogram", latencies.toJson());
+        Files.write(file, (line.toString() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Merges the forks of a variant.
+     * @return per argument set, the "fanOut" object of its record
+     */
+    static Map<String, JSONObject> read(Path file) throws IOException {
+        Map<String, JSONObject> merged = new HashMap<>();
+        if (!Files.exists(file)) {
+            return merged;
+        }
+        Map<String, LatencyHistogram> histograms = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject fork = new JSONObject(line);
+                String arguments = fork.getString("arguments");
+                JSONObject m = merged.get(arguments);
+                if (m == null) {
+                    m = new JSONObject()
+                            .put("executor", fork.getString("executor"))
+                            .put("concurrency", fork.getInt("concurrency"))
+                            .put("forks", 0).put("operations", 0L).put("nanos", 0L).put("pinned", 0L);
+                    merged.put(arguments, m);
+                    histograms.put(arguments, new LatencyHistogram());
+                }
+                m.put("forks", m.getInt("forks") + 1);
+                m.put("operations", m.getLong("operations") + fork.getLong("operations"));
+                m.put("nanos", m.getLong("nanos") + fork.getLong("nanos"));
+                m.put("pinned", m.getLong("pinned") + fork.getLong("pinned"));
+                histograms.get(arguments).add(LatencyHistogram.fromJson(fork.getJSONObject("histogram")));
+            }
+        }
+        for (Map.Entry<String, JSONObject> e : merged.entrySet()) {
+            JSONObject m = e.getValue();
+            LatencyHistogram latencies = histograms.get(e.getKey());
+            m.put("callsPerSecond", latencies.count() / (m.getLong("nanos") / 1e9));
+            m.put("latency", latencies.percentiles());
+            m.put("histogram", latencies.toJson());
+        }
+        return merged;
+    }
+
+    /**
+     * Reads a results file and writes the virtual threads next to the platform threads, if it
+     * has fan-out runs of both.
+     */
+    static JSONArray write(Path resultsFile, Path reportFile) throws IOException {
+        JSONArray rows = compare(new ArrayList<>(RegressionGate.load(resultsFile).values()));
+        if (rows.length() > 0) {
+            Files.write(reportFile, rows.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+
+    static JSONArray compare(List<JSONObject> records) {
+        Map<String, Map<String, JSONObject>> byKey = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject matrix = record.optJSONObject("matrix");
+            if (matrix == null || !record.has("fanOut") || !matrix.getJSONObject("axes").has("executor")) {
+                continue;
+            }
+            JSONObject axes = matrix.getJSONObject("axes");
+            List<String> names = new ArrayList<>(axes.keySet());
+            Collections.sort(names);
+            StringBuilder key = new StringBuilder(matrix.getString("program")).append('/').append(matrix.getString("variant"));
+            for (String axis : names) {
+                if (!axis.equals("executor")) {
+                    key.append('/').append(axis).append('=').append(axes.getString(axis));
+                }
+            }
+            key.append(" [").append(matrix.getString("arguments")).append(']');
+            byKey.computeIfAbsent(key.toString(), k -> new LinkedHashMap<>()).put(axes.getString("executor"), record);
+        }
+
+        JSONArray rows = new JSONArray();
+        for (Map.Entry<String, Map<String, JSONObject>> e : byKey.entrySet()) {
+            JSONObject row = new JSONObject().put("name", e.getKey());
+            for (String executor : new String[] { VIRTUAL, PLATFORM }) {
+                JSONObject record = e.getValue().get(executor);
+                if (record != null) {
+                    JSONObject fanOut = record.getJSONObject("fanOut");
+                    row.put(executor, new JSONObject()
+                            .put("concurrency", fanOut.getInt("concurrency"))
+                            .put("callsPerSecond", fanOut.getDouble("callsPerSecond"))
+                            .put("latency", fanOut.getJSONObject("latency"))
+                            .put("pinned", fanOut.getLong("pinned")));
+                }
+            }
+            if (row.has(VIRTUAL) && row.has(PLATFORM)) {
+                row.put("speedup", row.getJSONObject(VIRTUAL).getDouble("callsPerSecond")
+                        / row.getJSONObject(PLATFORM).getDouble("callsPerSecond"));
+            }
+            rows.put(row);
+        }
+        return rows;
+    }
+
+    static void print(JSONArray rows) {
+        for (int i = 0; i < rows.length(); ++i) {
+            JSONObject row = rows.getJSONObject(i);
+            System.out.println("Fan-out of " + row.getString("name"));
+            System.out.printf("  %-9s %11s %12s %10s %10s %10s %10s %10s %8s%n",
+                    "executor", "concurrency", "calls/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "pinned");
+            for (String executor : new String[] { VIRTUAL, PLATFORM }) {
+                JSONObject e = row.optJSONObject(executor);
+                if (e == null) {
+                    continue;
+                }
+                JSONObject latency = e.getJSONObject("latency");
+                System.out.printf("  %-9s %11d %12.4g %10.1f %10.1f %10.1f %10.1f %10.1f %8d%n",
+                        executor, e.getInt("concurrency"), e.getDouble("callsPerSecond"), latency.getDouble("p50"),
+                        latency.getDouble("p90"), latency.getDouble("p99"), latency.getDouble("p99.9"),
+                        latency.getDouble("max"), e.getLong("pinned"));
+            }
+            if (row.has("speedup")) {
+                System.out.printf("  Virtual threads make %.2fx the calls per second of platform threads%n", row.getDouble("speedup"));
+            }
+        }
+    }
+}
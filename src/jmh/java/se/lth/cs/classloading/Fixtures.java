@@ -0,0 +1,338 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Mode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Input files of a program, declared in the spec so that whether they are in the page cache is
+ * up to us and not to whichever fork happened to read them first.
+ *
+ * A program or variant with
+ * <pre>
+ * "fixtures": {"input": "data/big.csv"}, "arguments": [["${input}", "10"]]
+ * </pre>
+ * gets the absolute path of each fixture wherever its arguments say ${name}. "fixture-io" lists
+ * how the fixtures are read, which is an axis io of the run matrix. It is ["warm", "cold"] by
+ * default in single shot mode ("mode": "ss") and ["warm"] in the other modes:
+ * <ul>
+ *     <li>warm: before the trial, every fork maps the fixtures and touches each of their pages,
+ *     so that the program reads them from memory, and keeps them mapped until the trial ends.</li>
+ *     <li>cold: before every iteration, the fork copies each fixture to a new file next to it,
+ *     or in -Dclassloading.fixtureDir, writes it to disk and drops it from the page cache with
+ *     GNU dd iflag=nocache, and the program gets the path of the copy. Each iteration then starts
+ *     with the misses of a file that was never read. Only single shot mode measures them: in
+ *     the other modes an iteration calls the program many times on the same copy, and every call
+ *     after the first reads it from the page cache, so cold needs "mode": "ss". On tmpfs there is
+ *     no disk to miss.</li>
+ * </ul>
+ * The arguments in the records keep their placeholders. The report puts the cold reads next to
+ * the warm ones of the same run, in -Dclassloading.fixtureReport (fixture-io.json by default).
+ */
+class Fixtures implements Closeable {
+    static final String WARM = "warm";
+    static final String COLD = "cold";
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)}");
+    // The largest mapping Java can make, files beyond it are mapped in pieces
+    private static final long CHUNK = Integer.MAX_VALUE;
+
+    private final Map<String, Path> fixtures = new LinkedHashMap<>();
+    private final String io;
+    private final Map<String, Path> copies = new LinkedHashMap<>();
+    private final List<FileChannel> channels = new ArrayList<>();
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private boolean warnedEviction;
+
+    /**
+     * The fixtures of a fork.
+     * @param fixtures the fixtures as passed by {@link #toParam}
+     * @param io warm or cold
+     */
+    Fixtures(String fixtures, String io) {
+        JSONObject json = new JSONObject(fixtures);
+        for (String name : json.keySet()) {
+            this.fixtures.put(name, Paths.get(json.getString(name)));
+        }
+        if (!io.equals(WARM) && !io.equals(COLD)) {
+            throw new IllegalArgumentException("Unknown fixture-io " + io + ", expected warm or cold");
+        }
+        this.io = io;
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        String dir = System.getProperty("classloading.fixtureDir");
+        for (Map.Entry<String, Path> fixture : this.fixtures.entrySet()) {
+            Path path = fixture.getValue();
+            String name = "." + path.getFileName() + ".cold-" + pid;
+            copies.put(fixture.getKey(), dir == null ? path.resolveSibling(name) : Paths.get(dir).toAbsolutePath().resolve(name));
+        }
+    }
+
+    /**
+     * Resolves the "fixtures" of a spec against the working directory.
+     * @return name to absolute path
+     */
+    static Map<String, String> of(JSONObject spec) throws FileNotFoundException {
+        Map<String, String> fixtures = new TreeMap<>();
+        for (String name : spec.keySet()) {
+            Path path = Paths.get(spec.getString(name)).toAbsolutePath().normalize();
+            if (!Files.isRegularFile(path)) {
+                throw new FileNotFoundException("The fixture " + name + " is no file: " + path);
+            }
+            fixtures.put(name, path.toString());
+        }
+        return fixtures;
+    }
+
+    /**
+     * The io levels of a "fixture-io" spec, if it is null warm and, in single shot mode, cold.
+     * @throws IllegalArgumentException if it asks for cold reads in another mode, where only the
+     * first call of each iteration would read cold
+     */
+    static List<String> ioLevels(JSONArray spec, Mode mode) {
+        List<String> levels = new ArrayList<>();
+        if (spec == null) {
+            levels.add(WARM);
+            if (mode == Mode.SingleShotTime) {
+                levels.add(COLD);
+            }
+            return levels;
+        }
+        for (int i = 0; i < spec.length(); ++i) {
+            String level = spec.getString(i);
+            if (!level.equals(WARM) && !level.equals(COLD)) {
+                throw new IllegalArgumentException("Unknown fixture-io " + level + ", expected warm or cold");
+            }
+            if (level.equals(COLD) && mode != Mode.SingleShotTime) {
+                throw new IllegalArgumentException("Cold fixture-io needs \"mode\": \"ss\", in "
+                        + mode.shortLabel() + " mode only the first call of an iteration reads the fresh copy");
+            }
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    static String toParam(Map<String, String> fixtures) {
+        return new JSONObject(fixtures).toString();
+    }
+
+    /**
+     * The fixtures as they are on disk, so that cached results of changed fixtures are not reused.
+     */
+    static String fingerprint(Map<String, String> fixtures) throws IOException {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Map.Entry<String, String> fixture : fixtures.entrySet()) {
+            Path path = Paths.get(fixture.getValue());
+            fingerprint.append(fixture.getKey()).append('=').append(path).append(' ')
+                    .append(Files.size(path)).append(' ').append(Files.getLastModifiedTime(path).toMillis()).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * Checks that every placeholder of the arguments names a fixture.
+     */
+    static void check(String run, List<String> arguments, Map<String, String> fixtures) {
+        for (String a : arguments) {
+            Matcher m = PLACEHOLDER.matcher(a);
+            while (m.find()) {
+                if (!fixtures.containsKey(m.group(1))) {
+                    throw new IllegalArgumentException("The arguments " + a + " of " + run + " have no fixture " + m.group(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the placeholders of the arguments with the paths of the fixtures.
+     */
+    static String[] resolve(String[] args, Map<String, ?> paths) {
+        String[] resolved = new String[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            Matcher m = PLACEHOLDER.matcher(args[i]);
+            StringBuffer arg = new StringBuffer();
+            while (m.find()) {
+                Object path = paths.get(m.group(1));
+                m.appendReplacement(arg, Matcher.quoteReplacement(path == null ? m.group() : path.toString()));
+            }
+            m.appendTail(arg);
+            resolved[i] = arg.toString();
+        }
+        return resolved;
+    }
+
+    /**
+     * Where the program finds the fixtures in this fork.
+     */
+    Map<String, Path> paths() {
+        return io.equals(COLD) ? copies : fixtures;
+    }
+
+    /**
+     * Gets the fixtures ready for the trial, before the program is set up.
+     */
+    void prepareTrial() throws IOException, InterruptedException {
+        if (io.equals(WARM)) {
+            for (Path fixture : fixtures.values()) {
+                FileChannel channel = FileChannel.open(fixture, StandardOpenOption.READ);
+                channels.add(channel);
+                for (long position = 0; position < channel.size(); position += CHUNK) {
+                    MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(CHUNK, channel.size() - position));
+                    // Touches every page, reading what is not in the page cache yet
+                    mapping.load();
+                    mappings.add(mapping);
+                }
+            }
+        } else {
+            prepareIteration();
+        }
+    }
+
+    /**
+     * Makes fresh cold copies, before every iteration.
+     */
+    void prepareIteration() throws IOException, InterruptedException {
+        if (!io.equals(COLD)) {
+            return;
+        }
+        for (Map.Entry<String, Path> copy : copies.entrySet()) {
+            // A new file, not the pages of the previous copy
+            Files.deleteIfExists(copy.getValue());
+            Files.copy(fixtures.get(copy.getKey()), copy.getValue(), StandardCopyOption.COPY_ATTRIBUTES);
+            // Only pages that are on disk can be dropped
+            try (FileChannel channel = FileChannel.open(copy.getValue(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            evict(copy.getValue());
+        }
+    }
+
+    /**
+     * Drops a file from the page cache, which Java has no call for.
+     */
+    private void evict(Path file) throws IOException, InterruptedException {
+        Process dd;
+        try {
+            dd = new ProcessBuilder("dd", "if=" + file, "iflag=nocache", "count=0", "status=none")
+                    .redirectErrorStream(true).start();
+        } catch (IOException e) {
+            dd = null;
+        }
+        String output = "dd not found";
+        if (dd != null) {
+            try (InputStream in = dd.getInputStream()) {
+                output = new String(readAll(in), StandardCharsets.UTF_8).trim();
+            }
+        }
+        if ((dd == null || dd.waitFor() != 0) && !warnedEviction) {
+            System.err.println("Could not drop " + file + " from the page cache, cold reads may be warm: " + output);
+            warnedEviction = true;
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mappings.clear();
+        for (FileChannel channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        for (Path copy : copies.values()) {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /**
+     * Reads a results file and writes how much slower the cold reads are than the warm ones, if
+     * it has runs of both.
+     */
+    static JSONArray write(Path resultsFile, Path reportFile) throws IOException {
+        JSONArray rows = compare(new ArrayList<>(RegressionGate.load(resultsFile).values()));
+        if (rows.length() > 0) {
+            Files.write(reportFile, rows.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+
+    static JSONArray compare(List<JSONObject> records) {
+        Map<String, Map<String, JSONObject>> byKey = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject matrix = record.optJSONObject("matrix");
+            if (matrix == null || !matrix.getJSONObject("axes").has("io")) {
+                continue;
+            }
+            JSONObject axes = matrix.getJSONObject("axes");
+            List<String> names = new ArrayList<>(axes.keySet());
+            Collections.sort(names);
+            StringBuilder key = new StringBuilder(matrix.getString("program")).append('/').append(matrix.getString("variant"));
+            for (String axis : names) {
+                if (!axis.equals("io")) {
+                    key.append('/').append(axis).append('=').append(axes.getString(axis));
+                }
+            }
+            key.append(" [").append(matrix.getString("arguments")).append("] ").append(record.getString("mode"));
+            byKey.computeIfAbsent(key.toString(), k -> new LinkedHashMap<>()).put(axes.getString("io"), record);
+        }
+
+        JSONArray rows = new JSONArray();
+        for (Map.Entry<String, Map<String, JSONObject>> e : byKey.entrySet()) {
+            JSONObject warm = e.getValue().get(WARM);
+            JSONObject cold = e.getValue().get(COLD);
+            if (warm == null || cold == null) {
+                continue;
+            }
+            // How many times longer a call takes, whichever way the mode scores it
+            double slowdown = "thrpt".equals(warm.getString("mode"))
+                    ? warm.getDouble("score") / cold.getDouble("score")
+                    : cold.getDouble("score") / warm.getDouble("score");
+            rows.put(new JSONObject()
+                    .put("name", e.getKey())
+                    .put("unit", warm.getString("unit"))
+                    .put(WARM, warm.getDouble("score"))
+                    .put(COLD, cold.getDouble("score"))
+                    .put("coldSlowdown", slowdown));
+        }
+        return rows;
+    }
+
+    static void print(JSONArray rows) {
+        for (int i = 0; i < rows.length(); ++i) {
+            JSONObject row = rows.getJSONObject(i);
+            System.out.printf("Fixture I/O of %s: warm %.4g, cold %.4g %s, cold reads make it %.2fx slower%n",
+                    row.getString("name"), row.getDouble(WARM), row.getDouble(COLD), row.getString("unit"),
+                    row.getDouble("coldSlowdown"));
+        }
+    }
+}
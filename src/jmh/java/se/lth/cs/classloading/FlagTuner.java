@@ -0,0 +1,417 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Searches for the JVM flags that make a run of the spec fastest, with a genetic algorithm like
+ * the one of JMHSample_25_API_GA.
+ *
+ * A candidate picks one level of every gene: the garbage collector, heap sizing, tiered
+ * compilation, the code cache and the inlining thresholds. The first level of every gene is the
+ * JVM's default, so the first candidate is the run as given in the spec, which every other one is
+ * compared to. The fitness of a candidate is its speedup over that baseline, the geometric mean
+ * over all argument sets. A flag of a candidate replaces the JVM arguments of the spec that set the
+ * same thing, and a collector it picks replaces the one the spec picks. Candidates that fail, e.g.
+ * because the JVM refuses to start with their flags, have no fitness: they are listed as failed
+ * with the log that says why, and never chosen or bred from.
+ *
+ * Every generation keeps its two best candidates and breeds the rest by tournament selection,
+ * uniform crossover and mutation. Candidates are measured in parallel forks on their own CPUs with
+ * -Dclassloading.parallel, like the variants of a normal run, and their results are cached by
+ * flags, both within the search and across searches in the result cache.
+ *
+ * Usage: FlagTuner &lt;spec.json&gt; &lt;run&gt;
+ * -Dclassloading.population (10), -Dclassloading.generations (10) and -Dclassloading.seed (42)
+ * control the search. The best flags are printed as a "jvm-args" block for the spec, and written
+ * to tuned-&lt;run&gt;.json.
+ */
+public class FlagTuner {
+    // Every gene is a list of levels, each level the flags it adds, the default first
+    private static final Map<String, String[][]> GENES = new LinkedHashMap<>();
+    static {
+        GENES.put("gc", new String[][] {
+                {}, { "-XX:+UseSerialGC" }, { "-XX:+UseParallelGC" }, { "-XX:+UseG1GC" } });
+        GENES.put("heap", new String[][] {
+                {}, { "-Xmx256m" }, { "-Xms256m", "-Xmx256m" }, { "-Xmx1g" }, { "-Xms1g", "-Xmx1g" },
+                { "-Xmx4g" }, { "-Xms4g", "-Xmx4g" } });
+        GENES.put("tiered", new String[][] {
+                {}, { "-XX:-TieredCompilation" }, { "-XX:TieredStopAtLevel=1" } });
+        GENES.put("code-cache", new String[][] {
+                {}, { "-XX:ReservedCodeCacheSize=64m" }, { "-XX:ReservedCodeCacheSize=128m" },
+                { "-XX:ReservedCodeCacheSize=256m" } });
+        GENES.put("max-inline-size", new String[][] {
+                {}, { "-XX:MaxInlineSize=70" }, { "-XX:MaxInlineSize=100" } });
+        GENES.put("freq-inline-size", new String[][] {
+                {}, { "-XX:FreqInlineSize=500" }, { "-XX:FreqInlineSize=1000" } });
+        GENES.put("inline-small-code", new String[][] {
+                {}, { "-XX:InlineSmallCode=2000" }, { "-XX:InlineSmallCode=4000" } });
+        GENES.put("max-inline-level", new String[][] {
+                {}, { "-XX:MaxInlineLevel=15" }, { "-XX:MaxInlineLevel=25" } });
+    }
+    private static final String[][][] LEVELS = GENES.values().toArray(new String[0][][]);
+
+    // UseSerialGC, UseParallelGC, UseG1GC, UseZGC, UseShenandoahGC ...
+    private static final Pattern GC_FLAG = Pattern.compile("Use\\w*GC");
+
+    private static final int ELITE = 2;
+    private static final int TOURNAMENT = 3;
+    private static final double MUTATION = 0.15;
+
+    /**
+     * A candidate: the level of every gene.
+     */
+    static class Genome {
+        final int[] levels;
+        // The speedup over the baseline, NaN until measured or if it failed
+        double fitness = Double.NaN;
+        // Why the candidate could not be measured, null if it was
+        String failure;
+
+        Genome(int[] levels) {
+            this.levels = levels;
+        }
+
+        List<String> flags() {
+            List<String> flags = new ArrayList<>();
+            for (int i = 0; i < levels.length; ++i) {
+                flags.addAll(Arrays.asList(LEVELS[i][levels[i]]));
+            }
+            return flags;
+        }
+
+        @Override
+        public String toString() {
+            List<String> flags = flags();
+            return flags.isEmpty() ? "(defaults)" : String.join(" ", flags);
+        }
+    }
+
+    private final String run;
+    private final ClassLoaderBenchmark.RunSpecRow row;
+    private final List<CpuSlot> slots;
+    private final ResultCache cache;
+    private final Random random;
+    // Fitness and records of every candidate measured so far, and why the others failed, by flags
+    private final Map<String, Double> fitness = new HashMap<>();
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+    private final Map<String, List<JSONObject>> measured = new ConcurrentHashMap<>();
+    // The score of the baseline, by arguments
+    private final Map<String, Double> baseline = new HashMap<>();
+
+    FlagTuner(String run, ClassLoaderBenchmark.RunSpecRow row, List<CpuSlot> slots, ResultCache cache, long seed) {
+        this.run = run;
+        this.row = row;
+        this.slots = slots;
+        this.cache = cache;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Runs the search.
+     * @return the best candidate found, with its fitness
+     */
+    Genome tune(int populationSize, int generations) throws RunnerException, IOException, InterruptedException {
+        Genome defaults = new Genome(new int[LEVELS.length]);
+        for (JSONObject record : measure(Collections.singletonList(defaults)).get(0)) {
+            baseline.put(record.getJSONObject("params").getString("arguments"), record.getDouble("score"));
+        }
+        if (baseline.isEmpty()) {
+            throw new RunnerException("The baseline of " + run + " did not run, nothing to compare with: "
+                    + failures.get(defaults.toString()));
+        }
+
+        List<Genome> population = new ArrayList<>();
+        population.add(defaults);
+        while (population.size() < populationSize) {
+            population.add(mutate(new Genome(new int[LEVELS.length]), 1.0));
+        }
+
+        for (int generation = 0; generation < generations; ++generation) {
+            evaluate(population);
+            population.sort(FlagTuner::fittestFirst);
+
+            System.out.println("Generation " + generation + " of " + run);
+            for (Genome g : population) {
+                if (g.failure == null) {
+                    System.out.printf("%8.3fx  %s%n", g.fitness, g);
+                } else {
+                    System.out.printf("  failed  %s: %s%n", g, g.failure);
+                }
+            }
+            System.out.println();
+
+            List<Genome> next = new ArrayList<>(population.subList(0, Math.min(ELITE, population.size())));
+            while (next.size() < populationSize) {
+                next.add(mutate(crossover(select(population), select(population)), MUTATION));
+            }
+            population = next;
+        }
+        evaluate(population);
+        population.sort(FlagTuner::fittestFirst);
+        return population.get(0);
+    }
+
+    /**
+     * Orders the candidates by fitness, best first and failed ones last.
+     */
+    private static int fittestFirst(Genome a, Genome b) {
+        if (a.failure != null || b.failure != null) {
+            return Boolean.compare(a.failure != null, b.failure != null);
+        }
+        return Double.compare(b.fitness, a.fitness);
+    }
+
+    /**
+     * Measures the candidates that have no fitness yet, in parallel if there are CPU slots.
+     */
+    private void evaluate(List<Genome> population) throws RunnerException, IOException, InterruptedException {
+        List<Genome> pending = new ArrayList<>();
+        for (Genome g : population) {
+            Double known = fitness.get(g.toString());
+            if (known != null || failures.containsKey(g.toString())) {
+                continue;
+            } else if (!pending.stream().anyMatch(p -> p.toString().equals(g.toString()))) {
+                pending.add(g);
+            }
+        }
+        List<List<JSONObject>> results = measure(pending);
+        for (int i = 0; i < pending.size(); ++i) {
+            if (!results.get(i).isEmpty()) {
+                fitness.put(pending.get(i).toString(), speedup(results.get(i)));
+            }
+        }
+        for (Genome g : population) {
+            g.failure = failures.get(g.toString());
+            g.fitness = fitness.getOrDefault(g.toString(), Double.NaN);
+        }
+    }
+
+    /**
+     * The geometric mean speedup over the baseline, over all argument sets.
+     */
+    private double speedup(List<JSONObject> records) {
+        double logSum = 0;
+        for (JSONObject record : records) {
+            double ratio = record.getDouble("score") / baseline.get(record.getJSONObject("params").getString("arguments"));
+            // For throughput a higher score is better, for all the time based modes it is worse
+            logSum += Math.log("thrpt".equals(record.getString("mode")) ? ratio : 1 / ratio);
+        }
+        return Math.exp(logSum / records.size());
+    }
+
+    /**
+     * Runs the candidates, each with the JVM arguments of the run followed by its own flags.
+     * @return the records of every candidate, empty for the ones that failed, see {@link #failures}
+     */
+    private List<List<JSONObject>> measure(List<Genome> candidates) throws IOException, InterruptedException {
+        List<List<JSONObject>> results = new ArrayList<>();
+        List<Future<List<JSONObject>>> futures = new ArrayList<>();
+        BlockingQueue<CpuSlot> freeSlots = new LinkedBlockingQueue<>(slots);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, slots.size()));
+        for (int i = 0; i < candidates.size(); ++i) {
+            Genome candidate = candidates.get(i);
+            String name = run + "/tune-" + i;
+            futures.add(pool.submit(() -> {
+                CpuSlot slot = slots.isEmpty() ? null : freeSlots.take();
+                try {
+                    return measure(name, candidate, slot);
+                } finally {
+                    if (slot != null) {
+                        freeSlots.put(slot);
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+        for (Future<List<JSONObject>> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                throw new IOException("Could not measure a candidate", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The JVM arguments of the spec with the flags of a candidate, which replace those that set the
+     * same thing. Profiler arguments are added to these by ClassLoaderBenchmark.createOptions.
+     */
+    private List<String> jvmArgs(Genome candidate) {
+        List<String> flags = candidate.flags();
+        List<String> jvmArgs = new ArrayList<>();
+        for (String arg : row.jvmArgs) {
+            if (flags.stream().noneMatch(f -> flagName(f).equals(flagName(arg)))) {
+                jvmArgs.add(arg);
+            }
+        }
+        jvmArgs.addAll(flags);
+        return jvmArgs;
+    }
+
+    /**
+     * What a flag sets, e.g. -Xmx for -Xmx1g and MaxInlineSize for -XX:MaxInlineSize=70.
+     * All flags that pick a collector set the same thing, the JVM refuses to start with two.
+     */
+    static String flagName(String flag) {
+        if (flag.startsWith("-Xmx") || flag.startsWith("-Xms")) {
+            return flag.substring(0, 4);
+        }
+        if (flag.startsWith("-XX:")) {
+            String name = flag.substring(4).replaceFirst("^[+-]", "");
+            int eq = name.indexOf('=');
+            name = eq < 0 ? name : name.substring(0, eq);
+            return GC_FLAG.matcher(name).matches() ? "collector" : name;
+        }
+        return flag;
+    }
+
+    private List<JSONObject> measure(String name, Genome candidate, CpuSlot slot) throws IOException {
+        List<String> jvmArgs = jvmArgs(candidate);
+        String key = null;
+        if (cache != null) {
+            List<String> fields = row.fields();
+            fields.add(candidate.toString());
+            key = cache.key(run, fields, ClassPath.split(row.classPath));
+            List<JSONObject> cached = cache.load(key);
+            if (cached != null) {
+                // The report of the best genome needs its records, wherever they came from
+                measured.put(candidate.toString(), cached);
+                return cached;
+            }
+        }
+        List<JSONObject> records = measured.get(candidate.toString());
+        if (records != null) {
+            return records;
+        }
+
+        // A run of its own name, so that its phase timings, recordings and latencies are its own
+        Options candidateOptions = ClassLoaderBenchmark.createOptions(
+                Collections.singletonMap(name, row.withJvmArgs(jvmArgs))).get(name);
+        String log = "benchmark-output-" + RunMatrix.fileName(name) + ".log";
+        try {
+            records = ResultSink.toRecords(ClassLoaderBenchmark.runVariant(name, candidateOptions, slot), row.settings);
+        } catch (RunnerException | RuntimeException e) {
+            failures.put(candidate.toString(), e.getMessage() + ", see " + log);
+            return new ArrayList<>();
+        }
+        if (records.isEmpty()) {
+            // A JVM that does not start leaves JMH without results rather than failing
+            failures.put(candidate.toString(), "no results, the JVM may not have started, see " + log);
+            return records;
+        }
+        for (JSONObject record : records) {
+            record.put("variant", run);
+            record.put("flags", new JSONArray(candidate.flags()));
+        }
+        if (key != null) {
+            cache.store(key, records);
+        }
+        measured.put(candidate.toString(), records);
+        return records;
+    }
+
+    private Genome select(List<Genome> population) {
+        Genome best = null;
+        for (int i = 0; i < TOURNAMENT; ++i) {
+            Genome g = population.get(random.nextInt(population.size()));
+            if (best == null || fittestFirst(g, best) < 0) {
+                best = g;
+            }
+        }
+        return best;
+    }
+
+    private Genome crossover(Genome a, Genome b) {
+        int[] levels = new int[LEVELS.length];
+        for (int i = 0; i < levels.length; ++i) {
+            levels[i] = random.nextBoolean() ? a.levels[i] : b.levels[i];
+        }
+        return new Genome(levels);
+    }
+
+    private Genome mutate(Genome g, double probability) {
+        for (int i = 0; i < g.levels.length; ++i) {
+            if (random.nextDouble() < probability) {
+                g.levels[i] = random.nextInt(LEVELS[i].length);
+            }
+        }
+        return g;
+    }
+
+    /**
+     * The best flags with the JVM arguments of the run, as a block to paste into the spec.
+     */
+    JSONObject report(Genome best) {
+        List<String> jvmArgs = jvmArgs(best);
+        JSONObject o = new JSONObject();
+        o.put("run", run);
+        o.put("speedup", best.fitness);
+        o.put("flags", new JSONArray(best.flags()));
+        o.put("jvm-args", new JSONArray(jvmArgs));
+        o.put("records", new JSONArray(measured.getOrDefault(best.toString(), new ArrayList<>())));
+        return o;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException, InterruptedException {
+        if (args.length != 2) {
+            System.err.println("Usage: FlagTuner <spec.json> <run>");
+            System.exit(2);
+        }
+        List<CpuSlot> slots = ClassLoaderBenchmark.slotsFromProperties();
+        Map<String, ClassLoaderBenchmark.RunSpecRow> runs = ClassLoaderBenchmark.benchmarkSpecToRuns(
+                ClassLoaderBenchmark.loadBenchmarkSpec(Paths.get(args[0])), RunMatrix.fromProperties(),
+                ClassLoaderBenchmark.cpusPerFork(slots));
+        ClassLoaderBenchmark.RunSpecRow row = runs.get(args[1]);
+        if (row == null) {
+            System.err.println("No run " + args[1] + " in " + args[0] + ", there are " + runs.keySet());
+            System.exit(2);
+        }
+
+        String cacheDir = System.getProperty("classloading.cache");
+        ResultCache cache = null;
+        if (!"none".equals(cacheDir)) {
+            cache = new ResultCache(cacheDir == null ? ResultCache.defaultDirectory() : Paths.get(cacheDir));
+        }
+
+        if (!slots.isEmpty()) {
+            // Candidates run side by side, see ClassLoaderBenchmark.runVariants
+            System.setProperty("jmh.ignoreLock", "true");
+        }
+        FlagTuner tuner = new FlagTuner(args[1], row, slots, cache,
+                Long.getLong("classloading.seed", 42));
+        Genome best = tuner.tune(Integer.getInteger("classloading.population", 10),
+                Integer.getInteger("classloading.generations", 10));
+
+        JSONObject report = tuner.report(best);
+        Path file = Paths.get("tuned-" + RunMatrix.fileName(args[1]) + ".json");
+        Files.write(file, report.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.printf("Best flags for %s, %.3fx the speed of the baseline:%n", args[1], best.fitness);
+        System.out.println("\"jvm-args\": " + report.getJSONArray("jvm-args").toString());
+    }
+}
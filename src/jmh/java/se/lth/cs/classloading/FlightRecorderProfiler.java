@@ -0,0 +1,90 @@
+package se.lth.cs.classloading;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.runner.IterationType;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Records the measured iterations of a fork with Java Flight Recorder.
+ *
+ * The recording starts right before the first measurement iteration and stops after the last
+ * one, so the warmup is left out. It is controlled through the same diagnostic commands as
+ * jcmd JFR.start and JFR.stop, which need no API newer than Java 8. Each fork writes
+ * &lt;classloading.jfrDir&gt;/&lt;run&gt;/&lt;arguments&gt;-&lt;pid&gt;.jfr, which
+ * {@link JfrSummary} reads once the variant is done.
+ */
+public class FlightRecorderProfiler implements InternalProfiler {
+    private static final String RECORDING = "classloading";
+
+    private int measured;
+    private boolean recording;
+
+    @Override
+    public String getDescription() {
+        return "Java Flight Recording of the measured iterations";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        if (iterationParams.getType() != IterationType.MEASUREMENT || recording) {
+            return;
+        }
+        String settings = System.getProperty("classloading.jfrSettings", "profile");
+        recording = command("jfrStart", "name=" + RECORDING, "settings=" + settings);
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                         IterationResult result) {
+        if (iterationParams.getType() != IterationType.MEASUREMENT || ++measured < iterationParams.getCount() || !recording) {
+            return Collections.emptyList();
+        }
+        Path file = file(Paths.get(System.getProperty("classloading.jfrDir", "jfr")),
+                benchmarkParams.getParam("benchmarkIdentifier"), benchmarkParams.getParam("arguments"));
+        try {
+            Files.createDirectories(file.getParent());
+        } catch (IOException e) {
+            System.err.println("Could not create " + file.getParent() + ": " + e);
+        }
+        command("jfrStop", "name=" + RECORDING, "filename=" + file.toAbsolutePath());
+        recording = false;
+        return Collections.emptyList();
+    }
+
+    /**
+     * Where the recording of this fork goes.
+     */
+    static Path file(Path directory, String variant, String arguments) {
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        return directory.resolve(RunMatrix.fileName(variant)).resolve(RunMatrix.fileName(arguments) + "-" + pid + ".jfr");
+    }
+
+    /**
+     * Runs a diagnostic command of this JVM.
+     * @return whether it succeeded
+     */
+    private static boolean command(String operation, String... arguments) {
+        try {
+            ObjectName diagnostics = new ObjectName("com.sun.management:type=DiagnosticCommand");
+            ManagementFactory.getPlatformMBeanServer().invoke(diagnostics, operation,
+                    new Object[] { arguments }, new String[] { String[].class.getName() });
+            return true;
+        } catch (JMException | RuntimeException e) {
+            System.err.println("Could not run " + operation + ", no flight recording for this fork: " + e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a variant with every combination of a set of collectors and heap sizes, with the JMH GC
+ * profiler attached, to find the cheapest configuration that is fast enough.
+ *
+ * A program, or a variant replacing the one of its program, declares
+ * <pre>
+ * "gc-matrix": {"collectors": ["serial", "parallel", "g1", "z", "shenandoah"],
+ *               "heaps": ["256m", "1g"], "latency-goal": 0.002}
+ * </pre>
+ * which become the JVM axes "gc" and "heap" of its runs, see {@link RunMatrix}. The heap is
+ * fixed to the size, -Xms as well as -Xmx. Collectors the JDK of a run does not have are left
+ * out, and those that are still experimental in it are unlocked. The optional latency goal is
+ * a score in the unit of the results that a configuration has to meet, see {@link GcReport}.
+ * The "jvm-args" of such a variant may not choose a collector themselves, the JVM would refuse
+ * to start with two.
+ */
+class GcMatrix {
+    private static final Map<String, String> COLLECTORS = new LinkedHashMap<>();
+    static {
+        COLLECTORS.put("serial", "-XX:+UseSerialGC");
+        COLLECTORS.put("parallel", "-XX:+UseParallelGC");
+        COLLECTORS.put("g1", "-XX:+UseG1GC");
+        COLLECTORS.put("z", "-XX:+UseZGC");
+        COLLECTORS.put("shenandoah", "-XX:+UseShenandoahGC");
+    }
+    private static final String UNLOCK = "-XX:+UnlockExperimentalVMOptions";
+    private static final Pattern SELECTS_COLLECTOR = Pattern.compile("-XX:\\+Use\\w*GC");
+
+    // Whether a java can start with a flag: as it is, unlocked or not at all
+    private static final Map<String, List<String>> PROBED = new HashMap<>();
+
+    /**
+     * The JVM axes of a "gc-matrix" object, in the form of "jvm-axes".
+     */
+    static JSONObject axes(JSONObject gcMatrix) {
+        JSONArray collectors = new JSONArray();
+        JSONArray names = gcMatrix.optJSONArray("collectors");
+        for (String name : names == null ? COLLECTORS.keySet() : toList(names)) {
+            String flag = COLLECTORS.get(name);
+            if (flag == null) {
+                throw new IllegalArgumentException("Unknown collector " + name + ", expected one of " + COLLECTORS.keySet());
+            }
+            collectors.put(new JSONArray().put(flag));
+        }
+        JSONArray heaps = new JSONArray();
+        JSONArray sizes = gcMatrix.optJSONArray("heaps");
+        for (String size : sizes == null ? Collections.<String>emptyList() : toList(sizes)) {
+            heaps.put(new JSONArray().put("-Xms" + size).put("-Xmx" + size));
+        }
+
+        JSONObject axes = new JSONObject();
+        axes.put("gc", collectors);
+        if (heaps.length() > 0) {
+            axes.put("heap", heaps);
+        }
+        return axes;
+    }
+
+    /**
+     * Checks that the own JVM arguments of a variant with a gc-matrix leave the collector to it.
+     */
+    static void check(String run, JSONArray jvmArgs) {
+        for (String arg : toList(jvmArgs)) {
+            if (SELECTS_COLLECTOR.matcher(arg).matches()) {
+                throw new IllegalArgumentException("The jvm-args of " + run + " choose a collector with " + arg
+                        + ", which its gc-matrix chooses, leave it out");
+            }
+        }
+    }
+
+    /**
+     * The collector flag of a run, among the JVM arguments of its axes.
+     * @return the flag, or null if the gc axis did not set one
+     */
+    static String collector(List<String> axisArgs) {
+        for (String arg : axisArgs) {
+            if (COLLECTORS.containsValue(arg)) {
+                return arg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * What it takes for a java to start with a collector.
+     * @param flag the collector flag, e.g. -XX:+UseZGC
+     * @return the flags to add in front of the arguments, or null if the java does not have it
+     */
+    static synchronized List<String> unlock(String java, String flag) {
+        String key = java + " " + flag;
+        if (!PROBED.containsKey(key)) {
+            PROBED.put(key, probe(java, flag));
+        }
+        return PROBED.get(key);
+    }
+
+    private static List<String> probe(String java, String flag) {
+        if (starts(java, flag)) {
+            return Collections.emptyList();
+        }
+        if (starts(java, UNLOCK, flag)) {
+            return Collections.singletonList(UNLOCK);
+        }
+        System.err.println(java + " has no " + flag + ", leaving it out");
+        return null;
+    }
+
+    private static boolean starts(String java, String... flags) {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(Arrays.asList(flags));
+        command.add("-version");
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (InputStream out = process.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                while (out.read(buffer) >= 0) {
+                    // Only the exit code matters
+                }
+            }
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static List<String> toList(JSONArray array) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); ++i) {
+            list.add(array.getString(i));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,161 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the collector and heap combinations of the runs of a {@link GcMatrix}.
+ *
+ * For every benchmark it lists each combination with its score and what the JMH GC profiler
+ * saw: allocation rate, allocation per operation, collections and the time spent in them. The
+ * recommended combination is the one with the smallest heap that meets the latency goal, the
+ * best score among those with the same heap, or simply the best score if there is no goal.
+ * The table is written to -Dclassloading.gcReport (gc-matrix.json by default).
+ */
+class GcReport {
+    // The secondary results of the JMH GC profiler
+    static final String ALLOC_RATE = "\u00b7gc.alloc.rate";
+    static final String ALLOC_RATE_NORM = "\u00b7gc.alloc.rate.norm";
+    static final String GC_COUNT = "\u00b7gc.count";
+    static final String GC_TIME = "\u00b7gc.time";
+
+    /**
+     * Reads a results file and writes the table of its GC matrix runs, if it has any.
+     * @return the benchmarks with their combinations
+     */
+    static JSONArray write(Path resultsFile, Path reportFile) throws IOException {
+        JSONArray table = table(new ArrayList<>(RegressionGate.load(resultsFile).values()));
+        if (table.length() > 0) {
+            Files.write(reportFile, table.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        return table;
+    }
+
+    static JSONArray table(List<JSONObject> records) {
+        Map<String, JSONObject> benchmarks = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject matrix = record.optJSONObject("matrix");
+            if (matrix == null || !matrix.getJSONObject("axes").has("gc")) {
+                continue;
+            }
+            JSONObject axes = matrix.getJSONObject("axes");
+            List<String> names = new ArrayList<>(axes.keySet());
+            Collections.sort(names);
+            StringBuilder key = new StringBuilder(matrix.getString("program")).append('/').append(matrix.getString("variant"));
+            for (String axis : names) {
+                if (!axis.equals("gc") && !axis.equals("heap")) {
+                    key.append('/').append(axis).append('=').append(axes.getString(axis));
+                }
+            }
+            key.append(" [").append(matrix.getString("arguments")).append("] ").append(record.getString("mode"));
+
+            JSONObject benchmark = benchmarks.computeIfAbsent(key.toString(), k -> new JSONObject()
+                    .put("name", k)
+                    .put("mode", record.getString("mode"))
+                    .put("unit", record.getString("unit"))
+                    .put("latencyGoal", matrix.opt("latency-goal") == null ? JSONObject.NULL : matrix.get("latency-goal"))
+                    .put("combinations", new JSONArray()));
+
+            JSONObject secondary = record.getJSONObject("secondary");
+            JSONObject combination = new JSONObject();
+            combination.put("gc", axes.getString("gc"));
+            combination.put("heap", axes.optString("heap", "default"));
+            combination.put("score", record.get("score"));
+            combination.put("scoreError", record.opt("scoreError"));
+            combination.put("allocRate", score(secondary, ALLOC_RATE));
+            combination.put("allocPerOp", score(secondary, ALLOC_RATE_NORM));
+            // The profiler leaves these out if there were no collections at all
+            combination.put("gcCount", secondary.has(GC_COUNT) ? score(secondary, GC_COUNT) : 0);
+            combination.put("gcTime", secondary.has(GC_TIME) ? score(secondary, GC_TIME) : 0);
+            combination.put("meetsGoal", meetsGoal(benchmark, record.getDouble("score")));
+            benchmark.getJSONArray("combinations").put(combination);
+        }
+
+        JSONArray table = new JSONArray();
+        for (JSONObject benchmark : benchmarks.values()) {
+            JSONObject best = recommend(benchmark);
+            if (best != null) {
+                benchmark.put("recommended", new JSONObject().put("gc", best.get("gc")).put("heap", best.get("heap")));
+            }
+            table.put(benchmark);
+        }
+        return table;
+    }
+
+    private static boolean meetsGoal(JSONObject benchmark, double score) {
+        if (benchmark.isNull("latencyGoal")) {
+            return true;
+        }
+        double goal = benchmark.getDouble("latencyGoal");
+        return "thrpt".equals(benchmark.getString("mode")) ? score >= goal : score <= goal;
+    }
+
+    /**
+     * The smallest heap that meets the goal, with the best score for that heap.
+     * @return the combination, or null if none meets the goal
+     */
+    private static JSONObject recommend(JSONObject benchmark) {
+        boolean higherIsBetter = "thrpt".equals(benchmark.getString("mode"));
+        JSONObject best = null;
+        JSONArray combinations = benchmark.getJSONArray("combinations");
+        for (int i = 0; i < combinations.length(); ++i) {
+            JSONObject c = combinations.getJSONObject(i);
+            if (!c.getBoolean("meetsGoal")) {
+                continue;
+            }
+            if (best == null) {
+                best = c;
+                continue;
+            }
+            int heap = Double.compare(heapSize(c), heapSize(best));
+            double score = c.getDouble("score");
+            boolean betterScore = higherIsBetter ? score > best.getDouble("score") : score < best.getDouble("score");
+            if (heap < 0 || (heap == 0 && betterScore)) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static double heapSize(JSONObject combination) {
+        Double size = RunMatrix.size(combination.getString("heap"));
+        // Without a heap axis all combinations have the default heap, which is as large as they get
+        return size == null ? Double.POSITIVE_INFINITY : size;
+    }
+
+    private static Object score(JSONObject secondary, String name) {
+        JSONObject result = secondary.optJSONObject(name);
+        return result == null ? JSONObject.NULL : result.get("score");
+    }
+
+    static void print(JSONArray table) {
+        for (int i = 0; i < table.length(); ++i) {
+            JSONObject benchmark = table.getJSONObject(i);
+            System.out.println("GC matrix of " + benchmark.getString("name")
+                    + (benchmark.isNull("latencyGoal") ? "" : ", latency goal " + benchmark.get("latencyGoal") + " " + benchmark.getString("unit")));
+            System.out.printf("  %-28s %-20s %12s %-10s %12s %12s %8s %10s%n",
+                    "gc", "heap", "score", "unit", "MB/sec", "B/op", "gc.count", "gc.time ms");
+            JSONArray combinations = benchmark.getJSONArray("combinations");
+            for (int j = 0; j < combinations.length(); ++j) {
+                JSONObject c = combinations.getJSONObject(j);
+                System.out.printf("%s %-28s %-20s %12.4g %-10s %12.1f %12.1f %8.0f %10.0f%n",
+                        c.getBoolean("meetsGoal") ? " " : "!", c.getString("gc"), c.getString("heap"), c.getDouble("score"),
+                        benchmark.getString("unit"), c.optDouble("allocRate"), c.optDouble("allocPerOp"),
+                        c.optDouble("gcCount"), c.optDouble("gcTime"));
+            }
+            JSONObject recommended = benchmark.optJSONObject("recommended");
+            System.out.println(recommended == null ? "  No combination meets the latency goal"
+                    : "  Recommended: " + recommended.getString("gc") + " " + recommended.getString("heap"));
+        }
+    }
+}
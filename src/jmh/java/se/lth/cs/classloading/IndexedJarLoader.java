@@ -0,0 +1,328 @@
+package se.lth.cs.classloading;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A class loader for large classpaths, which knows up front where every package is.
+ *
+ * URLClassLoader looks for a class by trying every entry of the classpath in turn, opening the
+ * jars as it goes, and inflates through JarFile with all its checks for signatures and versions.
+ * With a hundred jars, how long a class takes to load then depends on where on the classpath it
+ * is. This loader instead reads the central directory of every jar once, from a memory-mapped
+ * copy of the file, and keeps an index from package to the jars and directories that have it.
+ * The bytes of a class are then taken straight from the mapping, inflating them if needed.
+ *
+ * The first entry of the classpath that has a class wins, as with java -cp. Jar manifests,
+ * signatures, multi-release versions and zip64 jars are not supported, and the mappings are only
+ * released once the garbage collector gets to them, as Java 8 has no way to unmap a file.
+ * A jar that needs any of those may load other classes than with URLClassLoader, or none, which
+ * is why a variant has to ask for this loader with "class-loader": "indexed".
+ */
+class IndexedJarLoader extends ClassLoader implements Closeable {
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    /**
+     * A jar or a directory of classes on the classpath.
+     */
+    private static abstract class Source {
+        final Path path;
+        final CodeSource codeSource;
+
+        Source(Path path) throws MalformedURLException {
+            this.path = path;
+            this.codeSource = new CodeSource(path.toUri().toURL(), (Certificate[]) null);
+        }
+
+        // The packages of the source, as directory names like "java/util"
+        abstract Set<String> packages() throws IOException;
+        abstract boolean has(String name);
+        abstract byte[] read(String name) throws IOException;
+        abstract URL url(String name) throws MalformedURLException;
+        void close() throws IOException {}
+    }
+
+    private static class Jar extends Source {
+        // Where each entry is in the file, and how it is stored
+        private final Map<String, long[]> entries = new HashMap<>();
+        private final FileChannel channel;
+        private final MappedByteBuffer mapping;
+
+        Jar(Path path) throws IOException {
+            super(path);
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+            readCentralDirectory();
+        }
+
+        private void readCentralDirectory() throws IOException {
+            // The end record is at least 22 bytes, followed by a comment of at most 64k
+            int end = mapping.limit() - 22;
+            int stop = Math.max(0, end - 0xffff);
+            while (end >= stop && mapping.getInt(end) != END_OF_CENTRAL_DIRECTORY) {
+                --end;
+            }
+            if (end < stop) {
+                throw new IOException(path + " is not a jar");
+            }
+            int count = Short.toUnsignedInt(mapping.getShort(end + 10));
+            long offset = Integer.toUnsignedLong(mapping.getInt(end + 16));
+            if (count == 0xffff || offset == 0xffffffffL) {
+                throw new IOException(path + " is a zip64 jar, which is not supported");
+            }
+
+            int position = (int) offset;
+            for (int i = 0; i < count; ++i) {
+                if (mapping.getInt(position) != CENTRAL_DIRECTORY_ENTRY) {
+                    throw new IOException(path + " has a broken central directory");
+                }
+                int method = Short.toUnsignedInt(mapping.getShort(position + 10));
+                long compressed = Integer.toUnsignedLong(mapping.getInt(position + 20));
+                long size = Integer.toUnsignedLong(mapping.getInt(position + 24));
+                int nameLength = Short.toUnsignedInt(mapping.getShort(position + 28));
+                int extraLength = Short.toUnsignedInt(mapping.getShort(position + 30));
+                int commentLength = Short.toUnsignedInt(mapping.getShort(position + 32));
+                long localHeader = Integer.toUnsignedLong(mapping.getInt(position + 42));
+                byte[] name = new byte[nameLength];
+                ByteBuffer slice = mapping.duplicate();
+                slice.position(position + 46);
+                slice.get(name);
+                entries.putIfAbsent(new String(name, StandardCharsets.UTF_8), new long[] { method, compressed, size, localHeader });
+                position += 46 + nameLength + extraLength + commentLength;
+            }
+        }
+
+        @Override
+        boolean has(String name) {
+            return entries.containsKey(name);
+        }
+
+        @Override
+        byte[] read(String name) throws IOException {
+            long[] entry = entries.get(name);
+            int header = (int) entry[3];
+            if (mapping.getInt(header) != LOCAL_HEADER) {
+                throw new IOException(path + " has a broken entry " + name);
+            }
+            // The local header has its own extra field, which may differ from the central one
+            int data = header + 30 + Short.toUnsignedInt(mapping.getShort(header + 26))
+                    + Short.toUnsignedInt(mapping.getShort(header + 28));
+            byte[] compressed = new byte[(int) entry[1]];
+            ByteBuffer slice = mapping.duplicate();
+            slice.position(data);
+            slice.get(compressed);
+            switch ((int) entry[0]) {
+                case STORED:
+                    return compressed;
+                case DEFLATED:
+                    byte[] bytes = new byte[(int) entry[2]];
+                    Inflater inflater = new Inflater(true);
+                    try {
+                        inflater.setInput(compressed);
+                        int n = 0;
+                        while (n < bytes.length && !inflater.finished() && !inflater.needsInput()) {
+                            n += inflater.inflate(bytes, n, bytes.length - n);
+                        }
+                        if (n != bytes.length) {
+                            throw new IOException(path + " has a truncated entry " + name);
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException(path + " has a broken entry " + name, e);
+                    } finally {
+                        inflater.end();
+                    }
+                    return bytes;
+                default:
+                    throw new IOException(path + " stores " + name + " with the unsupported method " + entry[0]);
+            }
+        }
+
+        @Override
+        URL url(String name) throws MalformedURLException {
+            return new URL("jar:" + path.toUri() + "!/" + name);
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        Set<String> packages() {
+            Set<String> packages = new HashSet<>();
+            for (String name : entries.keySet()) {
+                packages.add(packageOf(name));
+            }
+            return packages;
+        }
+    }
+
+    private static class Directory extends Source {
+        Directory(Path path) throws MalformedURLException {
+            super(path);
+        }
+
+        @Override
+        boolean has(String name) {
+            return Files.isRegularFile(path.resolve(name));
+        }
+
+        @Override
+        byte[] read(String name) throws IOException {
+            return Files.readAllBytes(path.resolve(name));
+        }
+
+        @Override
+        URL url(String name) throws MalformedURLException {
+            return path.resolve(name).toUri().toURL();
+        }
+
+        @Override
+        Set<String> packages() throws IOException {
+            try (Stream<Path> files = Files.walk(path)) {
+                return files.filter(Files::isRegularFile)
+                        .map(file -> packageOf(path.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/")))
+                        .collect(Collectors.toSet());
+            }
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<>();
+    // Package to the sources that have it, in classpath order
+    private final Map<String, List<Source>> packages = new HashMap<>();
+    // The packages we defined, the lookup of ClassLoader is deprecated since JDK 9
+    private final Set<String> definedPackages = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Opens and indexes every entry of the classpath.
+     */
+    IndexedJarLoader(List<Path> classPath, ClassLoader parent) throws IOException {
+        super(parent);
+        try {
+            for (Path entry : classPath) {
+                Source source = Files.isDirectory(entry) ? new Directory(entry) : new Jar(entry);
+                sources.add(source);
+                for (String p : source.packages()) {
+                    packages.computeIfAbsent(p, k -> new ArrayList<>()).add(source);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static String packageOf(String name) {
+        int slash = name.lastIndexOf('/');
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+
+    private Source find(String name) {
+        for (Source source : packages.getOrDefault(packageOf(name), Collections.emptyList())) {
+            if (source.has(name)) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String file = name.replace('.', '/') + ".class";
+        Source source = find(file);
+        if (source == null) {
+            throw new ClassNotFoundException(name);
+        }
+        byte[] bytes;
+        try {
+            bytes = source.read(file);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            String packageName = name.substring(0, dot);
+            if (definedPackages.add(packageName)) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException e) {
+                    // Already defined by a parent
+                }
+            }
+        }
+        return defineClass(name, bytes, 0, bytes.length, new ProtectionDomain(source.codeSource, null, this, null));
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        Source source = find(name);
+        try {
+            return source == null ? null : source.url(name);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (Source source : packages.getOrDefault(packageOf(name), Collections.emptyList())) {
+            if (source.has(name)) {
+                urls.add(source.url(name));
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Source source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        sources.clear();
+        packages.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
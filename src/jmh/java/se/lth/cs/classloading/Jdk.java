@@ -0,0 +1,87 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * A local JDK installation that variants can be forked with.
+ *
+ * A program, or a variant replacing those of its program, lists the JDKs to run on, the first
+ * one being the baseline the others are compared to:
+ * <pre>
+ * "jdks": [{"name": "temurin17", "home": "/opt/jdk-17"}, {"name": "graal21", "home": "/opt/graalvm-21"}]
+ * </pre>
+ * Vendor and version come from the release file of the installation.
+ */
+class Jdk {
+    final String name;
+    final Path home;
+    final boolean baseline;
+    final String vendor;
+    final String version;
+
+    Jdk(String name, Path home, boolean baseline) throws IOException {
+        this.name = name;
+        this.home = home;
+        this.baseline = baseline;
+        if (!Files.isExecutable(java(home))) {
+            throw new IOException("No bin/java in " + home + " for JDK " + name);
+        }
+        Properties release = new Properties();
+        Path releaseFile = home.resolve("release");
+        if (Files.exists(releaseFile)) {
+            try (InputStream in = Files.newInputStream(releaseFile)) {
+                release.load(in);
+            }
+        }
+        vendor = unquote(release.getProperty("IMPLEMENTOR", "unknown"));
+        version = unquote(release.getProperty("JAVA_VERSION", "unknown"));
+    }
+
+    /**
+     * The JDK the harness itself runs on.
+     */
+    static Jdk current() throws IOException {
+        return new Jdk("current", Paths.get(System.getProperty("java.home")), true);
+    }
+
+    String java() {
+        return java(home).toString();
+    }
+
+    private static Path java(Path home) {
+        return home.resolve("bin").resolve("java");
+    }
+
+    /**
+     * The feature version, e.g. 8 for "1.8.0_292" and 17 for "17.0.9", or 0 if not known.
+     */
+    int featureVersion() {
+        String v = version.startsWith("1.") ? version.substring(2) : version;
+        int end = 0;
+        while (end < v.length() && Character.isDigit(v.charAt(end))) {
+            ++end;
+        }
+        return end == 0 ? 0 : Integer.parseInt(v.substring(0, end));
+    }
+
+    JSONObject toJson() {
+        JSONObject o = new JSONObject();
+        o.put("name", name);
+        o.put("home", home.toString());
+        o.put("vendor", vendor);
+        o.put("version", version);
+        o.put("baseline", baseline);
+        return o;
+    }
+
+    private static String unquote(String s) {
+        return s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"") ? s.substring(1, s.length() - 1) : s;
+    }
+}
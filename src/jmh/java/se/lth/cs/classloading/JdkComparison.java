@@ -0,0 +1,144 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A side by side table of how much faster every JDK runs each benchmark than the baseline JDK.
+ *
+ * A speedup above 1 means faster than the baseline, whatever the mode. It comes with a bootstrap
+ * confidence interval over the iteration scores, like the ratios of {@link RegressionGate}.
+ * The table is written to -Dclassloading.jdkTable (jdk-speedup.json by default).
+ */
+class JdkComparison {
+    private static final double LEVEL = 0.95;
+
+    /**
+     * Compares the records of a results file, if any of them ran on more than one JDK.
+     * @return the rows of the table, or an empty array if there is nothing to compare
+     */
+    static JSONArray write(Path resultsFile, Path tableFile) throws IOException {
+        List<JSONObject> records = new ArrayList<>(RegressionGate.load(resultsFile).values());
+        JSONArray rows = speedups(records);
+        if (rows.length() > 0) {
+            Files.write(tableFile, rows.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+
+    /**
+     * Pairs every record with the record of the baseline JDK that differs from it only in the JDK.
+     */
+    static JSONArray speedups(List<JSONObject> records) {
+        Map<String, JSONObject> baselines = new LinkedHashMap<>();
+        Map<String, List<JSONObject>> others = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject jdk = record.optJSONObject("jdk");
+            if (jdk == null || record.optJSONObject("matrix") == null) {
+                continue;
+            }
+            String key = keyWithoutJdk(record);
+            if (jdk.getBoolean("baseline")) {
+                baselines.put(key, record);
+            } else {
+                others.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+            }
+        }
+
+        JSONArray rows = new JSONArray();
+        for (Map.Entry<String, JSONObject> e : baselines.entrySet()) {
+            List<JSONObject> compared = others.get(e.getKey());
+            if (compared == null) {
+                continue;
+            }
+            JSONObject baseline = e.getValue();
+            boolean higherIsBetter = "thrpt".equals(baseline.getString("mode"));
+            double[] a = RegressionGate.samples(baseline);
+
+            JSONObject row = new JSONObject();
+            row.put("name", e.getKey());
+            row.put("baseline", jdkLabel(baseline));
+            row.put("baselineScore", baseline.get("score"));
+            row.put("unit", baseline.getString("unit"));
+            JSONArray jdks = new JSONArray();
+            for (JSONObject record : compared) {
+                double[] b = RegressionGate.samples(record);
+                // ratio is mean(b) / mean(a), which is a slowdown for the time based modes
+                double ratio = RegressionGate.mean(b) / RegressionGate.mean(a);
+                double[] confidence = RegressionGate.bootstrapRatio(a, b, LEVEL);
+                JSONObject cell = new JSONObject();
+                cell.put("jdk", jdkLabel(record));
+                cell.put("score", record.get("score"));
+                if (higherIsBetter) {
+                    cell.put("speedup", ratio);
+                    cell.put("confidence", new JSONArray().put(confidence[0]).put(confidence[1]));
+                } else {
+                    cell.put("speedup", 1 / ratio);
+                    cell.put("confidence", new JSONArray().put(1 / confidence[1]).put(1 / confidence[0]));
+                }
+                jdks.put(cell);
+            }
+            row.put("jdks", jdks);
+            rows.put(row);
+        }
+        return rows;
+    }
+
+    static void print(JSONArray rows) {
+        if (rows.length() == 0) {
+            return;
+        }
+        int width = "Benchmark".length();
+        int baselineWidth = "Baseline".length();
+        for (int i = 0; i < rows.length(); ++i) {
+            width = Math.max(width, rows.getJSONObject(i).getString("name").length());
+            baselineWidth = Math.max(baselineWidth, rows.getJSONObject(i).getString("baseline").length());
+        }
+        String format = "%-" + width + "s  %-" + baselineWidth + "s  %s%n";
+        System.out.printf(format, "Benchmark", "Baseline", "Speedup [" + (int) (LEVEL * 100) + "% CI]");
+        for (int i = 0; i < rows.length(); ++i) {
+            JSONObject row = rows.getJSONObject(i);
+            List<String> cells = new ArrayList<>();
+            JSONArray jdks = row.getJSONArray("jdks");
+            for (int j = 0; j < jdks.length(); ++j) {
+                JSONObject cell = jdks.getJSONObject(j);
+                JSONArray ci = cell.getJSONArray("confidence");
+                cells.add(String.format("%s %.3fx [%.3f, %.3f]", cell.getString("jdk"),
+                        cell.getDouble("speedup"), ci.getDouble(0), ci.getDouble(1)));
+            }
+            System.out.printf(format, row.getString("name"), row.getString("baseline"), String.join("  ", cells));
+        }
+    }
+
+    private static String keyWithoutJdk(JSONObject record) {
+        JSONObject matrix = record.getJSONObject("matrix");
+        JSONObject axes = matrix.getJSONObject("axes");
+        List<String> names = new ArrayList<>(axes.keySet());
+        Collections.sort(names);
+        StringBuilder key = new StringBuilder(matrix.getString("program")).append('/').append(matrix.getString("variant"));
+        if (record.optBoolean("cds")) {
+            key.append("+cds");
+        }
+        for (String axis : names) {
+            if (!axis.equals("jdk")) {
+                key.append('/').append(axis).append('=').append(axes.getString(axis));
+            }
+        }
+        return key.append(" [").append(matrix.getString("arguments")).append("] ").append(record.getString("mode")).toString();
+    }
+
+    private static String jdkLabel(JSONObject record) {
+        JSONObject jdk = record.getJSONObject("jdk");
+        return jdk.getString("name") + " (" + jdk.getString("vendor") + " " + jdk.getString("version") + ")";
+    }
+}
@@ -0,0 +1,267 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A first look at the flight recordings of a variant, see {@link FlightRecorderProfiler}: where
+ * the time went, what allocated the most, which monitors threads waited for, and how often
+ * compiled code was thrown away again.
+ *
+ * The recordings are read with the jfr tool of the JDK the variant ran on, or of the JDK we run
+ * on if that one has none (before JDK 12), and the summary of all forks of an argument set is
+ * stored in its record:
+ * <ul>
+ *     <li>hotMethods: the methods on top of the stack in the most execution samples</li>
+ *     <li>allocationSites: the first frame outside the JDK that allocated the most bytes, with the class</li>
+ *     <li>monitors: how many times and how long threads blocked on a monitor, by monitor class</li>
+ *     <li>deoptimizations: how many there were, by reason (JDK 14 and later)</li>
+ * </ul>
+ * -Dclassloading.jfrTop sets the length of the lists (10 by default).
+ */
+class JfrSummary {
+    private static final String[] EVENTS = {
+            "jdk.ExecutionSample", "jdk.ObjectAllocationSample", "jdk.ObjectAllocationInNewTLAB",
+            "jdk.ObjectAllocationOutsideTLAB", "jdk.JavaMonitorEnter", "jdk.Deoptimization" };
+    private static final int STACK_DEPTH = 16;
+    private static final String[] JDK_PACKAGES = { "java.", "javax.", "jdk.", "sun.", "com.sun." };
+
+    // What the events of all forks of one argument set add up to
+    private final Map<String, Long> samples = new HashMap<>();
+    private final Map<String, Long> allocations = new HashMap<>();
+    private final Map<String, long[]> monitors = new HashMap<>();
+    private final Map<String, Long> deoptimizations = new HashMap<>();
+    private long sampleCount;
+    private int recordings;
+
+    /**
+     * The directory the forks of a variant write their recordings to.
+     */
+    static Path directory(String variant) {
+        return Paths.get(System.getProperty("classloading.jfrDir", "jfr")).toAbsolutePath().resolve(RunMatrix.fileName(variant));
+    }
+
+    /**
+     * Summarizes the recordings of a variant.
+     * @param java the java the variant ran with
+     * @return the summary of each argument set that has recordings
+     */
+    static Map<String, JSONObject> summarize(Path directory, String java, Collection<String> arguments) throws IOException {
+        Map<String, JSONObject> summaries = new HashMap<>();
+        if (!Files.isDirectory(directory)) {
+            return summaries;
+        }
+        Path jfr = tool(java);
+        if (jfr == null) {
+            System.err.println("No jfr tool found, the recordings in " + directory + " are not summarized");
+            return summaries;
+        }
+        int top = Integer.getInteger("classloading.jfrTop", 10);
+        for (String a : arguments) {
+            Pattern name = Pattern.compile(Pattern.quote(RunMatrix.fileName(a)) + "-\\d+\\.jfr");
+            JfrSummary summary = new JfrSummary();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    if (name.matcher(file.getFileName().toString()).matches()) {
+                        summary.read(jfr, file);
+                    }
+                }
+            }
+            if (summary.recordings > 0) {
+                summaries.put(a, summary.toJson(top));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Deletes the recordings of an earlier run of a variant.
+     */
+    static void clear(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.jfr")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Path tool(String java) {
+        List<Path> candidates = new ArrayList<>();
+        candidates.add(Paths.get(java).resolveSibling("jfr"));
+        candidates.add(Paths.get(System.getProperty("java.home"), "bin", "jfr"));
+        for (Path candidate : candidates) {
+            if (Files.isExecutable(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void read(Path jfr, Path recording) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(jfr.toString(), "print", "--json",
+                "--stack-depth", Integer.toString(STACK_DEPTH), "--events", String.join(",", EVENTS), recording.toString()));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        JSONObject json;
+        try (Reader out = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+            json = new JSONObject(new JSONTokener(out));
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException(jfr + " could not read " + recording);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + recording, e);
+        }
+
+        ++recordings;
+        JSONArray events = json.getJSONObject("recording").getJSONArray("events");
+        for (int i = 0; i < events.length(); ++i) {
+            JSONObject event = events.getJSONObject(i);
+            JSONObject values = event.getJSONObject("values");
+            switch (event.getString("type")) {
+                case "jdk.ExecutionSample":
+                    JSONArray frames = frames(values);
+                    if (frames.length() > 0) {
+                        samples.merge(method(frames.getJSONObject(0)), 1L, Long::sum);
+                        ++sampleCount;
+                    }
+                    break;
+                case "jdk.ObjectAllocationSample":
+                    allocated(values, values.getLong("weight"));
+                    break;
+                case "jdk.ObjectAllocationInNewTLAB":
+                    allocated(values, values.getLong("tlabSize"));
+                    break;
+                case "jdk.ObjectAllocationOutsideTLAB":
+                    allocated(values, values.getLong("allocationSize"));
+                    break;
+                case "jdk.JavaMonitorEnter":
+                    long[] monitor = monitors.computeIfAbsent(className(values.optJSONObject("monitorClass")), k -> new long[2]);
+                    ++monitor[0];
+                    monitor[1] += Duration.parse(values.getString("duration")).toNanos();
+                    break;
+                case "jdk.Deoptimization":
+                    deoptimizations.merge(values.optString("reason", "unknown"), 1L, Long::sum);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void allocated(JSONObject values, long bytes) {
+        JSONArray frames = frames(values);
+        // The JDK frames are mostly collections growing, the interesting part is who made them grow
+        String site = frames.length() == 0 ? "unknown" : method(frames.getJSONObject(0));
+        for (int i = 0; i < frames.length(); ++i) {
+            String method = method(frames.getJSONObject(i));
+            if (!fromJdk(method)) {
+                site = method;
+                break;
+            }
+        }
+        allocations.merge(site + " " + className(values.optJSONObject("objectClass")), bytes, Long::sum);
+    }
+
+    private static JSONArray frames(JSONObject values) {
+        JSONObject stackTrace = values.optJSONObject("stackTrace");
+        return stackTrace == null ? new JSONArray() : stackTrace.getJSONArray("frames");
+    }
+
+    private static String method(JSONObject frame) {
+        JSONObject method = frame.getJSONObject("method");
+        return className(method.getJSONObject("type")) + "." + method.getString("name");
+    }
+
+    private static String className(JSONObject type) {
+        return type == null ? "unknown" : type.getString("name").replace('/', '.');
+    }
+
+    private static boolean fromJdk(String method) {
+        for (String prefix : JDK_PACKAGES) {
+            if (method.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private JSONObject toJson(int top) {
+        JSONObject summary = new JSONObject();
+        summary.put("recordings", recordings);
+        summary.put("samples", sampleCount);
+
+        JSONArray hotMethods = new JSONArray();
+        for (Map.Entry<String, Long> e : largest(samples, top)) {
+            hotMethods.put(new JSONObject()
+                    .put("method", e.getKey())
+                    .put("samples", e.getValue())
+                    .put("share", e.getValue() / (double) sampleCount));
+        }
+        summary.put("hotMethods", hotMethods);
+
+        JSONArray allocationSites = new JSONArray();
+        for (Map.Entry<String, Long> e : largest(allocations, top)) {
+            String[] siteAndClass = e.getKey().split(" ", 2);
+            allocationSites.put(new JSONObject()
+                    .put("site", siteAndClass[0])
+                    .put("class", siteAndClass[1])
+                    .put("bytes", e.getValue()));
+        }
+        summary.put("allocationSites", allocationSites);
+
+        Map<String, Long> blockedNanos = new HashMap<>();
+        long blocked = 0;
+        long blockedTotal = 0;
+        for (Map.Entry<String, long[]> e : monitors.entrySet()) {
+            blockedNanos.put(e.getKey(), e.getValue()[1]);
+            blocked += e.getValue()[0];
+            blockedTotal += e.getValue()[1];
+        }
+        JSONArray byClass = new JSONArray();
+        for (Map.Entry<String, Long> e : largest(blockedNanos, top)) {
+            byClass.put(new JSONObject()
+                    .put("class", e.getKey())
+                    .put("events", monitors.get(e.getKey())[0])
+                    .put("ms", e.getValue() / 1e6));
+        }
+        summary.put("monitors", new JSONObject().put("events", blocked).put("ms", blockedTotal / 1e6).put("classes", byClass));
+
+        long deoptimized = 0;
+        JSONObject reasons = new JSONObject();
+        for (Map.Entry<String, Long> e : largest(deoptimizations, deoptimizations.size())) {
+            deoptimized += e.getValue();
+            reasons.put(e.getKey(), e.getValue());
+        }
+        summary.put("deoptimizations", new JSONObject().put("count", deoptimized).put("reasons", reasons));
+        return summary;
+    }
+
+    private static List<Map.Entry<String, Long>> largest(Map<String, Long> counts, int top) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return entries.subList(0, Math.min(top, entries.size()));
+    }
+}
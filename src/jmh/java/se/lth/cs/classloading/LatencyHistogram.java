@@ -0,0 +1,232 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, from 1 ns to hundreds of years, in a fixed amount of
+ * memory, that any number of threads can record into without locking.
+ *
+ * The buckets are laid out like those of HdrHistogram: values below 128 get a bucket each, and
+ * every power of two above that is split into 64 buckets, so a value is known to within 1/64th
+ * (1.6%) of itself. That is 3712 buckets, 29 kB, however many values are recorded. Percentiles
+ * are reported as the highest value of their bucket, the largest value exactly.
+ *
+ * Histograms are stored as JSON with the counts of the buckets that have any in "buckets", as
+ * base64 of pairs of varints: how many buckets on from the previous one, and its count. A run
+ * of a million calls then takes a few hundred bytes. Histograms of different forks can be merged
+ * with {@link #add}, which loses nothing.
+ *
+ * A program or variant with "latency-histogram": true is measured in SampleTime mode and times
+ * every call into one. Its record then has p50, p90, p99, p99.9 and max in "latency", and the
+ * histogram of all forks merged in "histogram".
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Another thread raised the max, try again against the new one
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram to this one, e.g. those of another fork.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        long m;
+        while (other.max.get() > (m = max.get()) && !max.compareAndSet(m, other.max.get())) {
+            // Raced with a record, try again
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * The smallest value that at least a given share of the values are at or below.
+     * @param percentile from 0 to 100
+     */
+    long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * p50, p90, p99, p99.9 and max, in microseconds.
+     */
+    JSONObject percentiles() {
+        JSONObject p = new JSONObject();
+        p.put("count", count());
+        p.put("p50", percentile(50) / 1e3);
+        p.put("p90", percentile(90) / 1e3);
+        p.put("p99", percentile(99) / 1e3);
+        p.put("p99.9", percentile(99.9) / 1e3);
+        p.put("max", max() / 1e3);
+        p.put("unit", "us");
+        return p;
+    }
+
+    /**
+     * The number of values, the largest value and the encoded counts of the buckets.
+     */
+    JSONObject toJson() {
+        ByteArrayOutputStream buckets = new ByteArrayOutputStream();
+        int previous = -1;
+        for (int i = 0; i < BUCKETS; ++i) {
+            long count = counts.get(i);
+            if (count > 0) {
+                writeVarint(buckets, i - previous);
+                writeVarint(buckets, count);
+                previous = i;
+            }
+        }
+        return new JSONObject()
+                .put("count", total.get())
+                .put("max", max.get())
+                .put("buckets", Base64.getEncoder().encodeToString(buckets.toByteArray()));
+    }
+
+    static LatencyHistogram fromJson(JSONObject json) {
+        LatencyHistogram h = new LatencyHistogram();
+        ByteBuffer buckets = ByteBuffer.wrap(Base64.getDecoder().decode(json.getString("buckets")));
+        int bucket = -1;
+        while (buckets.hasRemaining()) {
+            bucket += (int) readVarint(buckets);
+            long count = readVarint(buckets);
+            if (bucket >= BUCKETS) {
+                throw new IllegalArgumentException("A latency histogram has no bucket " + bucket);
+            }
+            h.counts.addAndGet(bucket, count);
+            h.total.addAndGet(count);
+        }
+        h.max.set(json.getLong("max"));
+        return h;
+    }
+
+    // 7 bits at a time, lowest first, the high bit set on all but the last byte
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Appends the histogram of one fork to a file the host reads, called from its teardown.
+     */
+    static void append(Path file, String arguments, LatencyHistogram latencies) throws IOException {
+        JSONObject line = new JSONObject().put("arguments", arguments).put("histogram", latencies.toJson());
+        Files.write(file, (line.toString() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Merges the histograms of all forks in a file.
+     * @return the histogram of each argument set, empty if there is no file
+     */
+    static Map<String, LatencyHistogram> read(Path file) throws IOException {
+        Map<String, LatencyHistogram> merged = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return merged;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject fork = new JSONObject(line);
+                merged.computeIfAbsent(fork.getString("arguments"), k -> new LatencyHistogram())
+                        .add(fromJson(fork.getJSONObject("histogram")));
+            }
+        }
+        return merged;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift the value down until it has as many bits as a sub-bucket index
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    /**
+     * The highest value that falls into a bucket.
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        long next = (subBucket + 1) << shift;
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
@@ -0,0 +1,168 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How JMH should measure a variant: mode, time unit, iterations, forks, threads and batch size.
+ *
+ * Each setting can be given for a whole program in the spec and overridden by a variant:
+ * <pre>
+ * "mode": "thrpt", "time-unit": "ms",
+ * "warmup-iterations": 10, "warmup-time": "2s",
+ * "measurement-iterations": 20, "measurement-time": "1s",
+ * "forks": 3, "threads": 1, "batch-size": 1
+ * </pre>
+ * Settings that are given nowhere keep the defaults we always used (average time, 2 warmup and
+ * 3 measurement iterations, 1 thread, 1 fork) or JMH's own.
+ *
+ * With "warmup": "adaptive" the warmup iterations are not fixed, each fork warms up until its
+ * scores are steady, see {@link SteadyState}. "warmup-budget" caps the warmup iterations (twice
+ * the warmup-iterations, 4 by default), "steady-window" (5) and "steady-cv" (0.05) tell what
+ * counts as steady. This does not save time: JMH cannot end a fork early, so every fork runs all
+ * of warmup-budget + max(measurement-iterations, steady-window) iterations, 9 with the defaults
+ * against 5 with a fixed warmup. What it buys is that the measured iterations are the steady ones,
+ * and a record of whether and when the fork got there. Raise the budget for programs that take
+ * long to warm up, at the cost of that many more iterations.
+ */
+class MeasurementSettings {
+    Mode mode = Mode.AverageTime;
+    TimeUnit timeUnit;
+    int warmupIterations = 2;
+    TimeValue warmupTime;
+    int measurementIterations = 3;
+    TimeValue measurementTime;
+    int forks = 1;
+    int threads = 1;
+    int batchSize;
+    boolean adaptive;
+    int warmupBudget;
+    int steadyWindow = 5;
+    double steadyCv = 0.05;
+
+    /**
+     * Reads the settings of a variant, falling back to those of its program.
+     */
+    static MeasurementSettings of(JSONObject variant, JSONObject program) {
+        MeasurementSettings s = new MeasurementSettings();
+        String mode = setting(variant, program, "mode");
+        if (mode != null) {
+            s.mode = Mode.deepValueOf(mode);
+        }
+        String timeUnit = setting(variant, program, "time-unit");
+        if (timeUnit != null) {
+            s.timeUnit = parseTimeUnit(timeUnit);
+        }
+        String warmupTime = setting(variant, program, "warmup-time");
+        if (warmupTime != null) {
+            s.warmupTime = TimeValue.fromString(warmupTime);
+        }
+        String measurementTime = setting(variant, program, "measurement-time");
+        if (measurementTime != null) {
+            s.measurementTime = TimeValue.fromString(measurementTime);
+        }
+        s.warmupIterations = intSetting(variant, program, "warmup-iterations", s.warmupIterations);
+        s.measurementIterations = intSetting(variant, program, "measurement-iterations", s.measurementIterations);
+        s.forks = intSetting(variant, program, "forks", s.forks);
+        s.threads = intSetting(variant, program, "threads", s.threads);
+        s.batchSize = intSetting(variant, program, "batch-size", s.batchSize);
+
+        String warmup = setting(variant, program, "warmup");
+        if (warmup != null && !warmup.equals("fixed")) {
+            if (!warmup.equals("adaptive")) {
+                throw new IllegalArgumentException("Unknown warmup " + warmup + ", expected fixed or adaptive");
+            }
+            s.adaptive = true;
+        }
+        s.warmupBudget = intSetting(variant, program, "warmup-budget", 2 * s.warmupIterations);
+        s.steadyWindow = intSetting(variant, program, "steady-window", s.steadyWindow);
+        String steadyCv = setting(variant, program, "steady-cv");
+        if (steadyCv != null) {
+            s.steadyCv = Double.parseDouble(steadyCv);
+        }
+        if (s.adaptive && s.steadyWindow < 2) {
+            throw new IllegalArgumentException("A steady-window needs at least 2 iterations");
+        }
+
+        // Every fork binds one program as a constant, see ClassLoaderBenchmark.EntryPoint
+        if (s.forks < 1) {
+            throw new IllegalArgumentException("External programs have to run in at least one fork");
+        }
+        return s;
+    }
+
+    /**
+     * Sets these settings on a JMH options builder.
+     */
+    ChainedOptionsBuilder apply(ChainedOptionsBuilder builder) {
+        builder.mode(mode)
+                .forks(forks)
+                .threads(threads);
+        if (adaptive) {
+            // All iterations are measured, SteadyState drops the warmup afterwards
+            builder.warmupIterations(0)
+                    .measurementIterations(warmupBudget + Math.max(measurementIterations, steadyWindow));
+        } else {
+            builder.warmupIterations(warmupIterations)
+                    .measurementIterations(measurementIterations);
+        }
+        if (timeUnit != null) {
+            builder.timeUnit(timeUnit);
+        }
+        if (warmupTime != null) {
+            builder.warmupTime(warmupTime);
+        }
+        if (measurementTime != null) {
+            builder.measurementTime(measurementTime);
+        }
+        if (batchSize > 0) {
+            builder.warmupBatchSize(batchSize).measurementBatchSize(batchSize);
+        }
+        return builder;
+    }
+
+    private static String setting(JSONObject variant, JSONObject program, String key) {
+        Object value = variant.has(key) ? variant.get(key) : program.opt(key);
+        return value == null ? null : value.toString();
+    }
+
+    private static int intSetting(JSONObject variant, JSONObject program, String key, int defaultValue) {
+        String value = setting(variant, program, key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Accepts the short forms JMH prints (ns, us, ms, s, m) as well as the TimeUnit names.
+     */
+    static TimeUnit parseTimeUnit(String unit) {
+        switch (unit) {
+            case "ns":
+                return TimeUnit.NANOSECONDS;
+            case "us":
+                return TimeUnit.MICROSECONDS;
+            case "ms":
+                return TimeUnit.MILLISECONDS;
+            case "s":
+                return TimeUnit.SECONDS;
+            case "m":
+                return TimeUnit.MINUTES;
+            default:
+                return TimeUnit.valueOf(unit.toUpperCase());
+        }
+    }
+
+    /**
+     * All settings, for the result cache.
+     */
+    @Override
+    public String toString() {
+        return mode.shortLabel() + " " + timeUnit + " " + warmupIterations + "x" + warmupTime
+                + " " + measurementIterations + "x" + measurementTime
+                + " forks=" + forks + " threads=" + threads + " batch=" + batchSize
+                + (adaptive ? " adaptive=" + warmupBudget + "/" + steadyWindow + "/" + steadyCv : "");
+    }
+}
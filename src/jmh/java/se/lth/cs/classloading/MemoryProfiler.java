@@ -0,0 +1,85 @@
+package se.lth.cs.classloading;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.Defaults;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reports how much memory the program needs, next to what the JMH GC profiler says about how
+ * much it allocates. It runs in the fork, and per iteration gives
+ * <ul>
+ *     <li>memory.heap.peak: the most heap in use, the sum of the peaks of the heap pools</li>
+ *     <li>memory.metaspace.used: metaspace in use at the end of the iteration</li>
+ *     <li>memory.metaspace.growth: how much metaspace grew during the iteration</li>
+ * </ul>
+ * Metaspace that keeps growing once the program is warm means it keeps defining classes, or
+ * holds on to those of earlier calls. The pools only know their peak since the last reset, so
+ * the peak of the heap is an upper bound if the pools did not peak at the same time.
+ *
+ * It is the profiler "memory" of the "profilers" of a program or variant, or of
+ * -Dclassloading.profilers, comma separated ("gc,memory" by default, empty for none). Any other
+ * name is passed on to JMH.
+ */
+public class MemoryProfiler implements InternalProfiler {
+    private static final String METASPACE = "Metaspace";
+
+    private long metaspaceBefore;
+
+    @Override
+    public String getDescription() {
+        return "Peak heap and metaspace use";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        metaspaceBefore = metaspaceUsed();
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                         IterationResult result) {
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                heapPeak += pool.getPeakUsage().getUsed();
+            }
+        }
+        long metaspace = metaspaceUsed();
+
+        List<Result<?>> results = new ArrayList<>();
+        results.add(new ScalarResult(Defaults.PREFIX + "memory.heap.peak", mb(heapPeak), "MB", AggregationPolicy.MAX));
+        results.add(new ScalarResult(Defaults.PREFIX + "memory.metaspace.used", mb(metaspace), "MB", AggregationPolicy.MAX));
+        results.add(new ScalarResult(Defaults.PREFIX + "memory.metaspace.growth", (metaspace - metaspaceBefore) / 1024.0,
+                "KB", AggregationPolicy.AVG));
+        return results;
+    }
+
+    private static long metaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (METASPACE.equals(pool.getName())) {
+                return pool.getUsage().getUsed();
+            }
+        }
+        // Not a HotSpot JVM
+        return 0;
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
@@ -0,0 +1,162 @@
+package se.lth.cs.classloading;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where System.out and System.err of a benchmarked program go while it is measured.
+ *
+ * Printing to the console costs formatting, terminal I/O and locking, none of which we want
+ * in the score. A capture is installed in the setup of a trial, before anything is measured,
+ * and the console is given back in the teardown. The modes are:
+ * <ul>
+ *     <li>console: leave the streams alone</li>
+ *     <li>discard: drop everything</li>
+ *     <li>ring:&lt;bytes&gt;:&lt;file&gt;: keep the last bytes in a buffer allocated up front,
+ *     written to the file in the teardown</li>
+ *     <li>mmap:&lt;bytes&gt;:&lt;file&gt;: write into a memory-mapped file of that size, anything
+ *     past the end is dropped</li>
+ * </ul>
+ * A program or variant picks the mode with "output" and the size of the buffer or file with
+ * "output-kb" (64 by default), the file is program-output-&lt;run&gt;.txt.
+ */
+abstract class OutputCapture extends OutputStream {
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+
+    /**
+     * Creates the capture described by a mode string.
+     * @return the capture, or null for the console mode
+     */
+    static OutputCapture create(String mode) throws IOException {
+        String[] parts = mode.split(":", 3);
+        switch (parts[0]) {
+            case "console":
+                return null;
+            case "discard":
+                return new Discard();
+            case "ring":
+                return new Ring(Integer.parseInt(parts[1]), Paths.get(parts[2]));
+            case "mmap":
+                return new Mapped(Integer.parseInt(parts[1]), Paths.get(parts[2]));
+            default:
+                throw new IllegalArgumentException("Unknown output mode: " + mode);
+        }
+    }
+
+    /**
+     * Sends System.out and System.err here.
+     */
+    void install() {
+        originalOut = System.out;
+        originalErr = System.err;
+        // No autoflush, flushing is what we are trying to avoid
+        PrintStream stream = new PrintStream(this, false);
+        System.setOut(stream);
+        System.setErr(stream);
+    }
+
+    /**
+     * Gives the streams back and saves what was captured.
+     */
+    void restore() throws IOException {
+        System.out.flush();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        finish();
+    }
+
+    /**
+     * Called after the streams have been restored.
+     */
+    void finish() throws IOException {}
+
+    private static class Discard extends OutputCapture {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+
+    private static class Ring extends OutputCapture {
+        private final byte[] buffer;
+        private final Path file;
+        // Total number of bytes ever written, the next one goes at written % buffer.length
+        private long written;
+
+        Ring(int size, Path file) {
+            this.buffer = new byte[size];
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) {
+            buffer[(int) (written++ % buffer.length)] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // Only the last buffer.length bytes can survive anyway
+            if (len > buffer.length) {
+                written += len - buffer.length;
+                off += len - buffer.length;
+                len = buffer.length;
+            }
+            int start = (int) (written % buffer.length);
+            int first = Math.min(len, buffer.length - start);
+            System.arraycopy(b, off, buffer, start, first);
+            System.arraycopy(b, off + first, buffer, 0, len - first);
+            written += len;
+        }
+
+        @Override
+        void finish() throws IOException {
+            int size = (int) Math.min(written, buffer.length);
+            int start = (int) ((written - size) % buffer.length);
+            byte[] tail = new byte[size];
+            int first = Math.min(size, buffer.length - start);
+            System.arraycopy(buffer, start, tail, 0, first);
+            System.arraycopy(buffer, 0, tail, first, size - first);
+            Files.write(file, tail);
+        }
+    }
+
+    private static class Mapped extends OutputCapture {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        Mapped(int size, Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        @Override
+        public void write(int b) {
+            if (buffer.hasRemaining()) {
+                buffer.put((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer.put(b, off, Math.min(len, buffer.remaining()));
+        }
+
+        @Override
+        void finish() throws IOException {
+            buffer.force();
+            // Drop the unused end of the mapping so the file only holds what was written
+            channel.truncate(buffer.position());
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package se.lth.cs.classloading;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the HotSpot performance counters a JVM saves on exit with
+ * -XX:+PerfDataSaveToFile -XX:PerfDataSaveFile=&lt;file&gt;.
+ *
+ * Those include how much time the JVM spent loading, linking, verifying and initializing classes,
+ * which cannot be asked for from inside the JVM without going through internal APIs.
+ * Only the long counters are read, which is all of the ones we care about.
+ */
+class PerfData {
+    private static final int MAGIC = 0xcafec0c0;
+    private static final byte TYPE_LONG = 'J';
+
+    /**
+     * Parses a saved perf data file.
+     * @return the value of every long counter by name
+     */
+    static Map<String, Long> read(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a perf data file");
+        }
+        // The magic number is always big endian, the rest is in the order given by the next byte
+        buffer.order(buffer.get(4) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int entryOffset = buffer.getInt(24);
+        int entries = buffer.getInt(28);
+
+        Map<String, Long> counters = new HashMap<>();
+        int offset = entryOffset;
+        for (int i = 0; i < entries; ++i) {
+            int entryLength = buffer.getInt(offset);
+            int nameOffset = buffer.getInt(offset + 4);
+            int vectorLength = buffer.getInt(offset + 8);
+            byte type = buffer.get(offset + 12);
+            int dataOffset = buffer.getInt(offset + 16);
+
+            if (type == TYPE_LONG && vectorLength == 0) {
+                int nameStart = offset + nameOffset;
+                int nameEnd = nameStart;
+                while (buffer.get(nameEnd) != 0) {
+                    ++nameEnd;
+                }
+                String name = new String(buffer.array(), nameStart, nameEnd - nameStart, StandardCharsets.US_ASCII);
+                counters.put(name, buffer.getLong(offset + dataOffset));
+            }
+            offset += entryLength;
+        }
+        return counters;
+    }
+
+    /**
+     * Converts a counter measured in high resolution ticks to milliseconds.
+     */
+    static double ticksToMillis(Map<String, Long> counters, String name) {
+        Long ticks = counters.get(name);
+        Long frequency = counters.get("sun.os.hrt.frequency");
+        if (ticks == null || frequency == null) {
+            return Double.NaN;
+        }
+        return ticks * 1000.0 / frequency;
+    }
+}
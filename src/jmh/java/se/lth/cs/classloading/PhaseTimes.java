@@ -0,0 +1,71 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How long the steps before the first call to main took: opening the jar, defining the main
+ * class, linking and verifying it, and running its static initializer.
+ *
+ * These happen once per fork in the setup, so JMH never sees them. Each fork appends its
+ * timings to a file instead, and the host turns them into secondary results of the variant,
+ * next to the time of main itself which is the primary result.
+ */
+class PhaseTimes {
+    static final String[] PHASES = { "open", "define", "link", "clinit" };
+
+    /**
+     * Appends the timings of one fork, called from the setup.
+     * @param nanos the duration of each phase, in the order of {@link #PHASES}
+     */
+    static void append(Path file, String arguments, long... nanos) throws IOException {
+        JSONObject line = new JSONObject();
+        line.put("arguments", arguments);
+        for (int i = 0; i < PHASES.length; ++i) {
+            line.put(PHASES[i], nanos[i] / 1e6);
+        }
+        Files.write(file, (line.toString() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the timings of all forks of a variant.
+     * @return per argument set, the secondary results to add to its record
+     */
+    static Map<String, JSONObject> read(Path file) throws IOException {
+        Map<String, Map<String, ListStatistics>> stats = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return new HashMap<>();
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject fork = new JSONObject(line);
+                Map<String, ListStatistics> phases = stats.computeIfAbsent(fork.getString("arguments"), k -> new LinkedHashMap<>());
+                for (String phase : PHASES) {
+                    phases.computeIfAbsent(phase, k -> new ListStatistics()).addValue(fork.getDouble(phase));
+                }
+            }
+        }
+
+        Map<String, JSONObject> secondary = new HashMap<>();
+        for (Map.Entry<String, Map<String, ListStatistics>> e : stats.entrySet()) {
+            JSONObject results = new JSONObject();
+            for (Map.Entry<String, ListStatistics> phase : e.getValue().entrySet()) {
+                results.put("phase." + phase.getKey(), ResultSink.statistic(phase.getValue(), "ms"));
+            }
+            secondary.put(e.getKey(), results);
+        }
+        return secondary;
+    }
+}
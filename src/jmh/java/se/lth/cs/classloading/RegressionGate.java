@@ -0,0 +1,406 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the results of a run with those of a baseline run, and tells which variants got
+ * faster, slower or did not change.
+ *
+ * The raw iteration scores of both runs are compared with a Mann-Whitney U test, exact for
+ * small samples and with the normal approximation otherwise. A change only counts if it is
+ * significant and larger than a minimal effect, so that tiny but consistent differences do not
+ * fail a build. The ratio of the means comes with a bootstrap confidence interval, and Cliff's
+ * delta is given as a scale free effect size.
+ *
+ * If both runs were profiled with the GC profiler, the bytes allocated per call are compared as
+ * well. There are no samples of those, so a variant allocates more if the intervals of the two
+ * scores do not overlap and it grew by more than the minimal effect.
+ *
+ * The exact U test cannot reach a p-value below 2 / C(m + n, m) for samples of m and n scores,
+ * so small samples can never be significant. With alpha 0.05 both runs need at least 4 scores,
+ * measurement iterations times forks, e.g. 4 iterations in 1 fork or 2 in 2 forks, and with 0.01
+ * at least 5. The default 3 iterations in 1 fork are not enough. Variants with too few scores get
+ * the verdict "insufficient" instead of "unchanged", and the gate refuses to pass.
+ *
+ * Usage: RegressionGate <baseline.jsonl> <current.jsonl>, or ClassLoaderBenchmark with
+ * -Dclassloading.baseline=<baseline.jsonl>.
+ * Exits with 1 if any variant got significantly slower or allocates more, and with 3 if it could
+ * not tell for some variant because of too few scores.
+ */
+public class RegressionGate {
+
+    enum Verdict { FASTER, SLOWER, UNCHANGED, INSUFFICIENT, MISSING }
+
+    // Exit codes of the gate
+    static final int PASSED = 0;
+    static final int REGRESSED = 1;
+    static final int UNDECIDED = 3;
+
+    static class Comparison {
+        public String key;
+        public double baselineMean;
+        public double currentMean;
+        public double ratio;
+        public double[] ratioConfidence;
+        public double pValue;
+        public double cliffsDelta;
+        public Verdict verdict;
+        // The number of scores of the baseline and the current run
+        public int[] samples;
+        // Bytes allocated per call, NaN if a run was not profiled
+        public double baselineAlloc = Double.NaN;
+        public double currentAlloc = Double.NaN;
+        public boolean allocates;
+
+        JSONObject toJson() {
+            JSONObject o = new JSONObject();
+            o.put("name", key);
+            o.put("verdict", verdict.toString().toLowerCase());
+            if (verdict != Verdict.MISSING) {
+                o.put("baseline", baselineMean);
+                o.put("current", currentMean);
+                o.put("ratio", ratio);
+                o.put("ratioConfidence", new JSONArray(ratioConfidence));
+                o.put("p", pValue);
+                o.put("cliffsDelta", cliffsDelta);
+                o.put("samples", new JSONArray(samples));
+                if (!Double.isNaN(baselineAlloc) && !Double.isNaN(currentAlloc)) {
+                    o.put("baselineAlloc", baselineAlloc);
+                    o.put("currentAlloc", currentAlloc);
+                    o.put("allocates", allocates ? "more" : "same");
+                }
+            }
+            return o;
+        }
+    }
+
+    private static final int BOOTSTRAP_RESAMPLES = 10000;
+    private static final int EXACT_LIMIT = 40;
+
+    /**
+     * Loads the records of a results file, keyed by variant and arguments. A later record of the
+     * same run supersedes an earlier one, as runs with a budget write a variant after every round.
+     */
+    static Map<String, JSONObject> load(Path results) throws IOException {
+        Map<String, JSONObject> records = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(results, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject record = new JSONObject(line);
+                records.put(keyOf(record), record);
+            }
+        }
+        return records;
+    }
+
+    static String keyOf(JSONObject record) {
+        String arguments = record.getJSONObject("params").optString("arguments", "");
+        return record.getString("variant") + " [" + arguments + "]";
+    }
+
+    /**
+     * Compares every record of the current run with the baseline record of the same name.
+     * @param alpha significance level of the test
+     * @param minEffect smallest relative change of the mean that is reported, e.g. 0.02 for 2%
+     */
+    static List<Comparison> compare(Map<String, JSONObject> baseline, Map<String, JSONObject> current,
+                                    double alpha, double minEffect) {
+        List<Comparison> comparisons = new ArrayList<>();
+        for (Map.Entry<String, JSONObject> e : current.entrySet()) {
+            Comparison c = new Comparison();
+            c.key = e.getKey();
+            JSONObject before = baseline.get(e.getKey());
+            if (before == null) {
+                c.verdict = Verdict.MISSING;
+                comparisons.add(c);
+                continue;
+            }
+
+            double[] a = samples(before);
+            double[] b = samples(e.getValue());
+            c.samples = new int[] { a.length, b.length };
+            c.baselineMean = mean(a);
+            c.currentMean = mean(b);
+            c.ratio = c.currentMean / c.baselineMean;
+            c.ratioConfidence = bootstrapRatio(a, b, 1 - alpha);
+            c.pValue = mannWhitney(a, b);
+            c.cliffsDelta = cliffsDelta(a, b);
+
+            // For throughput a higher score is better, for all the time based modes it is worse
+            boolean higherIsBetter = "thrpt".equals(e.getValue().optString("mode"));
+            boolean increased = c.ratio > 1;
+            if (smallestPValue(a.length, b.length) >= alpha) {
+                c.verdict = Verdict.INSUFFICIENT;
+            } else if (c.pValue >= alpha || Math.abs(c.ratio - 1) < minEffect) {
+                c.verdict = Verdict.UNCHANGED;
+            } else if (increased == higherIsBetter) {
+                c.verdict = Verdict.FASTER;
+            } else {
+                c.verdict = Verdict.SLOWER;
+            }
+
+            JSONObject allocBefore = before.getJSONObject("secondary").optJSONObject(GcReport.ALLOC_RATE_NORM);
+            JSONObject allocNow = e.getValue().getJSONObject("secondary").optJSONObject(GcReport.ALLOC_RATE_NORM);
+            if (allocBefore != null && allocNow != null) {
+                c.baselineAlloc = allocBefore.getDouble("score");
+                c.currentAlloc = allocNow.getDouble("score");
+                double errors = allocBefore.optDouble("scoreError", 0) + allocNow.optDouble("scoreError", 0);
+                c.allocates = c.currentAlloc - c.baselineAlloc > (Double.isNaN(errors) ? 0 : errors)
+                        && c.currentAlloc > c.baselineAlloc * (1 + minEffect);
+            }
+            comparisons.add(c);
+        }
+        return comparisons;
+    }
+
+    /**
+     * Prints the comparisons, one JSON object per line.
+     * @return REGRESSED if any variant got slower or allocates more, else UNDECIDED if any had too
+     * few scores to tell, else PASSED
+     */
+    static int report(List<Comparison> comparisons, double alpha) {
+        int slower = 0;
+        int insufficient = 0;
+        for (Comparison c : comparisons) {
+            System.out.println(c.toJson().toString());
+            if (c.verdict == Verdict.SLOWER || c.allocates) {
+                ++slower;
+            }
+            if (c.verdict == Verdict.INSUFFICIENT) {
+                ++insufficient;
+            }
+        }
+        if (insufficient > 0) {
+            System.err.println("REGRESSION GATE CANNOT DECIDE: " + insufficient + " of " + comparisons.size()
+                    + " variants have too few scores for a significance level of " + alpha + ". Both runs need at least "
+                    + samplesNeeded(alpha) + " measurement iterations times forks per variant.");
+        }
+        return slower > 0 ? REGRESSED : insufficient > 0 ? UNDECIDED : PASSED;
+    }
+
+    /**
+     * The smallest two-sided p-value the U test can give for samples of m and n scores, which it
+     * gives when they do not overlap at all: 2 / C(m + n, m).
+     */
+    static double smallestPValue(int m, int n) {
+        double arrangements = 1;
+        for (int i = 1; i <= m; ++i) {
+            arrangements = arrangements * (n + i) / i;
+        }
+        return Math.min(1, 2 / arrangements);
+    }
+
+    /**
+     * The fewest scores each run needs for a change to be significant at alpha.
+     */
+    static int samplesNeeded(double alpha) {
+        int k = 1;
+        while (smallestPValue(k, k) >= alpha) {
+            ++k;
+        }
+        return k;
+    }
+
+    /**
+     * All iteration scores of all forks of a record.
+     */
+    static double[] samples(JSONObject record) {
+        List<Double> values = new ArrayList<>();
+        JSONArray forks = record.getJSONArray("samples");
+        for (int i = 0; i < forks.length(); ++i) {
+            JSONArray iterations = forks.getJSONArray(i);
+            for (int j = 0; j < iterations.length(); ++j) { values.add(iterations.getDouble(j)); }
+        }
+        double[] result = new double[values.size()];
+        for (int i = 0; i < result.length; ++i) { result[i] = values.get(i); }
+        return result;
+    }
+
+    static double mean(double[] xs) {
+        double sum = 0;
+        for (double x : xs) {
+            sum += x;
+        }
+        return sum / xs.length;
+    }
+
+    /**
+     * Two-sided p-value of the Mann-Whitney U test.
+     */
+    static double mannWhitney(double[] a, double[] b) {
+        int m = a.length;
+        int n = b.length;
+        double[] all = new double[m + n];
+        System.arraycopy(a, 0, all, 0, m);
+        System.arraycopy(b, 0, all, m, n);
+        Integer[] order = new Integer[m + n];
+        for (int i = 0; i < order.length; ++i) { order[i] = i; }
+        Arrays.sort(order, (x, y) -> Double.compare(all[x], all[y]));
+
+        // Ranks, ties get the average of the ranks they span
+        double[] ranks = new double[m + n];
+        double tieCorrection = 0;
+        boolean ties = false;
+        for (int i = 0; i < order.length; ) {
+            int j = i;
+            while (j + 1 < order.length && all[order[j + 1]] == all[order[i]]) {
+                ++j;
+            }
+            double rank = (i + j) / 2.0 + 1;
+            for (int k = i; k <= j; ++k) { ranks[order[k]] = rank; }
+            int t = j - i + 1;
+            if (t > 1) {
+                ties = true;
+                tieCorrection += (double) t * t * t - t;
+            }
+            i = j + 1;
+        }
+
+        double rankSumA = 0;
+        for (int i = 0; i < m; ++i) { rankSumA += ranks[i]; }
+        double u = rankSumA - m * (m + 1) / 2.0;
+
+        if (!ties && m + n <= EXACT_LIMIT) {
+            return exactMannWhitney((int) Math.round(u), m, n);
+        }
+
+        double mu = m * n / 2.0;
+        double sigma = Math.sqrt(m * n / 12.0 * ((m + n + 1) - tieCorrection / ((double) (m + n) * (m + n - 1))));
+        if (sigma == 0) {
+            return 1;
+        }
+        // With continuity correction
+        double z = (Math.abs(u - mu) - 0.5) / sigma;
+        return Math.min(1, 2 * (1 - normalCdf(Math.max(z, 0))));
+    }
+
+    /**
+     * Exact two-sided p-value of U, by counting the rank arrangements that give each value of U.
+     */
+    private static double exactMannWhitney(int u, int m, int n) {
+        // counts[i][j][k]: arrangements of i values of a and j values of b with U = k
+        double[][] previous = new double[n + 1][];
+        for (int j = 0; j <= n; ++j) {
+            previous[j] = new double[1];
+            previous[j][0] = 1;
+        }
+        for (int i = 1; i <= m; ++i) {
+            double[][] next = new double[n + 1][];
+            next[0] = new double[1];
+            next[0][0] = 1;
+            for (int j = 1; j <= n; ++j) {
+                next[j] = new double[i * j + 1];
+                // Largest value from a: it is above all j values of b
+                for (int k = 0; k < previous[j].length; ++k) { next[j][k + j] += previous[j][k]; }
+                // Largest value from b: adds nothing to U
+                for (int k = 0; k < next[j - 1].length; ++k) { next[j][k] += next[j - 1][k]; }
+            }
+            previous = next;
+        }
+
+        double[] counts = previous[n];
+        double total = 0;
+        double below = 0;
+        double above = 0;
+        for (int k = 0; k < counts.length; ++k) {
+            total += counts[k];
+            if (k <= u) {
+                below += counts[k];
+            }
+            if (k >= u) {
+                above += counts[k];
+            }
+        }
+        return Math.min(1, 2 * Math.min(below, above) / total);
+    }
+
+    /**
+     * Cliff's delta, from -1 (current always lower) to 1 (current always higher).
+     */
+    static double cliffsDelta(double[] a, double[] b) {
+        long greater = 0;
+        long lower = 0;
+        for (double x : a) {
+            for (double y : b) {
+                if (y > x) {
+                    ++greater;
+                } else if (y < x) {
+                    ++lower;
+                }
+            }
+        }
+        return (greater - lower) / (double) (a.length * b.length);
+    }
+
+    /**
+     * Percentile bootstrap confidence interval of mean(b) / mean(a).
+     * The seed is fixed, so the same inputs always give the same interval.
+     */
+    static double[] bootstrapRatio(double[] a, double[] b, double level) {
+        Random random = new Random(42);
+        double[] ratios = new double[BOOTSTRAP_RESAMPLES];
+        for (int r = 0; r < BOOTSTRAP_RESAMPLES; ++r) {
+            ratios[r] = resampledMean(b, random) / resampledMean(a, random);
+        }
+        Arrays.sort(ratios);
+        int low = (int) Math.floor((1 - level) / 2 * (BOOTSTRAP_RESAMPLES - 1));
+        int high = (int) Math.ceil((1 + level) / 2 * (BOOTSTRAP_RESAMPLES - 1));
+        return new double[] { ratios[low], ratios[high] };
+    }
+
+    private static double resampledMean(double[] xs, Random random) {
+        double sum = 0;
+        for (int i = 0; i < xs.length; ++i) {
+            sum += xs[random.nextInt(xs.length)];
+        }
+        return sum / xs.length;
+    }
+
+    /**
+     * Standard normal CDF, Abramowitz and Stegun 26.2.17 (error below 7.5e-8).
+     */
+    private static double normalCdf(double z) {
+        double t = 1 / (1 + 0.2316419 * Math.abs(z));
+        double poly = t * (0.319381530 + t * (-0.356563782 + t * (1.781477937 + t * (-1.821255978 + t * 1.330274429))));
+        double p = 1 - Math.exp(-z * z / 2) / Math.sqrt(2 * Math.PI) * poly;
+        return z >= 0 ? p : 1 - p;
+    }
+
+    /**
+     * Compares a results file with a baseline.
+     * @return the exit code, PASSED, REGRESSED or UNDECIDED
+     */
+    static int gate(Path baseline, Path current) throws IOException {
+        double alpha = Double.parseDouble(System.getProperty("classloading.alpha", "0.05"));
+        double minEffect = Double.parseDouble(System.getProperty("classloading.minEffect", "0.02"));
+        return report(compare(load(baseline), load(current), alpha, minEffect), alpha);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RegressionGate <baseline.jsonl> <current.jsonl>");
+            System.exit(2);
+        }
+        int result = gate(Paths.get(args[0]), Paths.get(args[1]));
+        if (result != PASSED) {
+            System.exit(result);
+        }
+    }
+}
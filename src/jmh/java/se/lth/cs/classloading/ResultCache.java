@@ -0,0 +1,209 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Remembers the results of variants so they are only measured again when something changed.
+ *
+ * The key of a variant is a SHA-256 over the contents of its classpath, the fields of its
+ * run specification, the JDK, the harness itself and a fingerprint of the host. The stored
+ * value is the list of records the {@link ResultSink} wrote for it.
+ *
+ * The cache is kept in -Dclassloading.cache (~/.cache/classloading-benchmark by default), and
+ * -Dclassloading.cache=none measures everything again.
+ */
+class ResultCache {
+    private final Path directory;
+    private final String environment;
+
+    ResultCache(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.environment = jdkFingerprint() + "\n" + hostFingerprint() + "\n" + harnessFingerprint();
+    }
+
+    /**
+     * Computes the key of a variant.
+     * @param variant the name of the variant
+     * @param fields every field of the variant's run specification, in a fixed order
+     * @param classPath the jars or directories whose contents should be part of the key
+     */
+    String key(String variant, List<String> fields, List<Path> classPath) throws IOException {
+        MessageDigest digest = sha256();
+        update(digest, environment);
+        update(digest, variant);
+        for (String field : fields) {
+            update(digest, field);
+        }
+        for (Path entry : classPath) {
+            hashContents(digest, entry);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the stored records of the key, or null if there are none
+     */
+    List<JSONObject> load(String key) throws IOException {
+        Path file = directory.resolve(key + ".jsonl");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        List<JSONObject> records = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records.add(new JSONObject(line));
+            }
+        }
+        return records;
+    }
+
+    void store(String key, List<JSONObject> records) throws IOException {
+        // Written under another name first so a crash never leaves half an entry behind
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        List<String> lines = new ArrayList<>();
+        for (JSONObject record : records) {
+            lines.add(record.toString());
+        }
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, directory.resolve(key + ".jsonl"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String jdkFingerprint() {
+        return System.getProperty("java.home") + " " + System.getProperty("java.vendor")
+                + " " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version");
+    }
+
+    /**
+     * What the machine is, as far as it affects the results: OS, CPU model and count, and memory.
+     */
+    private static String hostFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        String host = System.getenv("HOSTNAME");
+        if (host == null) {
+            host = readFirstLine(Paths.get("/etc/hostname"));
+        }
+        sb.append(host).append(' ')
+                .append(System.getProperty("os.name")).append(' ')
+                .append(System.getProperty("os.version")).append(' ')
+                .append(System.getProperty("os.arch")).append(' ')
+                .append(Runtime.getRuntime().availableProcessors());
+
+        Path cpuInfo = Paths.get("/proc/cpuinfo");
+        Path memInfo = Paths.get("/proc/meminfo");
+        try {
+            if (Files.exists(cpuInfo)) {
+                try (Stream<String> lines = Files.lines(cpuInfo)) {
+                    sb.append(' ').append(lines.filter(l -> l.startsWith("model name")).findFirst().orElse(""));
+                }
+            }
+            if (Files.exists(memInfo)) {
+                sb.append(' ').append(readFirstLine(memInfo));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the hardware of this host, measuring every variant again: " + e);
+            // A key no earlier run can have made, so that nothing measured elsewhere is taken for ours
+            sb.append(' ').append(UUID.randomUUID());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A new build of the harness may measure differently, so its own jar is part of the key.
+     */
+    private static String harnessFingerprint() throws IOException {
+        CodeSource source = ResultCache.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            return "unknown";
+        }
+        try {
+            Path location = Paths.get(source.getLocation().toURI());
+            MessageDigest digest = sha256();
+            hashContents(digest, location);
+            return toHex(digest.digest());
+        } catch (URISyntaxException e) {
+            return source.getLocation().toString();
+        }
+    }
+
+    /**
+     * Hashes a file, or every file below a directory in a stable order.
+     */
+    private static void hashContents(MessageDigest digest, Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(path)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                update(digest, path.relativize(file).toString());
+                hashContents(digest, file);
+            }
+        } else if (Files.exists(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(path)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    private static String readFirstLine(Path file) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            return line == null ? "" : line.trim();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+        // Separator, so that ("ab", "c") and ("a", "bc") do not hash the same
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Where the cache lives unless told otherwise.
+     */
+    static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "classloading-benchmark");
+    }
+}
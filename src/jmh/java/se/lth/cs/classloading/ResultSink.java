@@ -0,0 +1,223 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.util.ListStatistics;
+import org.openjdk.jmh.util.Statistics;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the results of every variant to one JSON Lines file, as soon as the variant finishes.
+ *
+ * Each line is a self-contained record of one JMH run (a variant with one set of arguments),
+ * with its parameters, JVM arguments and the raw score of every iteration of every fork.
+ * Nothing is kept in memory after it is written, and the file is flushed after every variant
+ * so it can be followed with tail -f.
+ *
+ * A run that died halfway can be resumed: the variants that already have records in the file
+ * are reported by {@link #finishedVariants()} and do not have to be run again. A variant measured
+ * in several rounds, see {@link BudgetScheduler}, is written again after each of them, and the
+ * last of its records count.
+ *
+ * The file is -Dclassloading.results (results.jsonl by default), -Dclassloading.resume=true
+ * resumes from it.
+ */
+class ResultSink implements Closeable {
+    // The confidence level JMH uses for its score errors
+    static final double CONFIDENCE = 0.999;
+
+    private final Writer writer;
+    private final Set<String> finished = new HashSet<>();
+
+    /**
+     * @param file where to write the records
+     * @param resume keep the records already in the file instead of starting over
+     * @throws IOException
+     */
+    ResultSink(Path file, boolean resume) throws IOException {
+        if (resume && Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // The last line may be cut short if we crashed while writing it
+                    try {
+                        finished.add(new JSONObject(line).getString("variant"));
+                    } catch (RuntimeException e) {
+                        System.err.println("Ignoring broken record in " + file + ": " + line);
+                    }
+                }
+            }
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } else {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The variants which already have results in the file we resumed from.
+     */
+    Set<String> finishedVariants() {
+        return finished;
+    }
+
+    /**
+     * Appends the records of a finished variant.
+     * All records of a variant are written together, so a variant is either fully in the file or not at all.
+     */
+    synchronized void write(String variant, List<JSONObject> records) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (JSONObject record : records) {
+            lines.append(record.toString()).append('\n');
+        }
+        writer.write(lines.toString());
+        writer.flush();
+        finished.add(variant);
+    }
+
+    /**
+     * The records of a finished variant, one per JMH run.
+     * @param settings how the variant was measured, or null if not from the spec
+     */
+    static List<JSONObject> toRecords(ClassLoaderBenchmark.VariantResult variantResult, MeasurementSettings settings) {
+        List<JSONObject> records = new ArrayList<>();
+        for (RunResult result : variantResult.results) {
+            JSONObject record = toJson(result);
+            record.put("variant", variantResult.variant);
+            record.put("cpus", variantResult.slot == null ? "unpinned" : variantResult.slot.cpuList());
+            record.put("node", variantResult.slot == null ? -1 : variantResult.slot.node);
+            if (variantResult.forkOrder != null) {
+                record.put("forkOrder", new JSONArray(variantResult.forkOrder.get(result.getParams().getParam("arguments"))));
+            }
+            if (settings != null && settings.adaptive) {
+                SteadyState.trim(result, record, settings);
+            }
+            JSONObject phases = variantResult.phases.get(result.getParams().getParam("arguments"));
+            if (phases != null) {
+                for (String phase : phases.keySet()) {
+                    record.getJSONObject("secondary").put(phase, phases.get(phase));
+                }
+            }
+            JSONObject recording = variantResult.recordings.get(result.getParams().getParam("arguments"));
+            if (recording != null) {
+                record.put("jfr", recording);
+            }
+            JSONObject fanOut = variantResult.fanOut.get(result.getParams().getParam("arguments"));
+            if (fanOut != null) {
+                record.put("fanOut", fanOut);
+            }
+            LatencyHistogram latencies = variantResult.latencies.get(result.getParams().getParam("arguments"));
+            if (latencies != null) {
+                record.put("latency", latencies.percentiles());
+                record.put("histogram", latencies.toJson());
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Converts a run result to JSON, keeping the raw score of every iteration.
+     */
+    static JSONObject toJson(RunResult result) {
+        BenchmarkParams params = result.getParams();
+        JSONObject record = new JSONObject();
+
+        JSONObject paramValues = new JSONObject();
+        for (Object key : params.getParamsKeys()) {
+            paramValues.put((String) key, params.getParam((String) key));
+        }
+        record.put("params", paramValues);
+        record.put("jvm", params.getJvm());
+        record.put("jdkVersion", params.getJdkVersion());
+        record.put("vmVersion", params.getVmVersion());
+        record.put("jvmArgs", new JSONArray(params.getJvmArgs()));
+        record.put("mode", params.getMode().shortLabel());
+        record.put("threads", params.getThreads());
+        // Forks of interleaved runs are merged afterwards, so the params only know of one
+        record.put("forks", result.getBenchmarkResults().size());
+
+        Result<?> primary = result.getAggregatedResult().getPrimaryResult();
+        record.put("score", primary.getScore());
+        record.put("scoreError", number(primary.getScoreError()));
+        record.put("confidence", interval(primary.getScoreConfidence()));
+        record.put("unit", primary.getScoreUnit());
+
+        record.put("secondary", secondary(result));
+
+        // One array of iteration scores per fork, and when each fork started
+        JSONArray forks = new JSONArray();
+        JSONArray forkStart = new JSONArray();
+        for (BenchmarkResult fork : result.getBenchmarkResults()) {
+            forkStart.put(fork.getMetadata() == null ? JSONObject.NULL : fork.getMetadata().getStartTime());
+            JSONArray iterations = new JSONArray();
+            for (IterationResult iteration : fork.getIterationResults()) {
+                iterations.put(iteration.getPrimaryResult().getScore());
+            }
+            forks.put(iterations);
+        }
+        record.put("samples", forks);
+        record.put("forkStart", forkStart);
+        return record;
+    }
+
+    /**
+     * The secondary results of a run, as JMH aggregates them over its forks and iterations.
+     */
+    static JSONObject secondary(RunResult result) {
+        JSONObject secondary = new JSONObject();
+        // JMH keys the secondary results by their labels
+        for (Result<?> r : result.getAggregatedResult().getSecondaryResults().values()) {
+            JSONObject value = new JSONObject();
+            value.put("score", r.getScore());
+            value.put("scoreError", number(r.getScoreError()));
+            value.put("unit", r.getScoreUnit());
+            secondary.put(r.getLabel(), value);
+        }
+        return secondary;
+    }
+
+    /**
+     * A mean with its error, like JMH reports them.
+     */
+    static JSONObject statistic(Statistics stats, String unit) {
+        JSONObject o = new JSONObject();
+        o.put("score", stats.getMean());
+        o.put("scoreError", number(stats.getMeanErrorAt(CONFIDENCE)));
+        o.put("unit", unit);
+        return o;
+    }
+
+    /**
+     * JSON has no NaN, which is what the error is with a single sample.
+     */
+    static Object number(double d) {
+        return Double.isNaN(d) || Double.isInfinite(d) ? JSONObject.NULL : d;
+    }
+
+    static JSONArray interval(double[] confidence) {
+        return new JSONArray().put(number(confidence[0])).put(number(confidence[1]));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,261 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands the spec into runs: every program, variant, JDK and combination of JVM axis levels
+ * becomes a run of its own, which JMH then measures with every argument set.
+ *
+ * A run is identified by program/variant, followed by jdk=name if it lists JDKs (see {@link Jdk})
+ * and axis=level for every JVM axis, e.g. "hello/serial/jdk=temurin17/heap=-Xmx1g".
+ * JVM axes are given by a program, or a variant replacing those of its program, as lists of
+ * levels, each a list of JVM arguments:
+ * <pre>
+ * "jvm-axes": { "heap": [["-Xmx64m"], ["-Xmx1g"]], "tiered": [[], ["-XX:-TieredCompilation"]] }
+ * </pre>
+ * A "thread-sweep" adds the axis threads, see {@link ThreadSweep}, a "fan-out" the axis
+ * executor, see {@link FanOut}, and "fixtures" the axis io, see {@link Fixtures}.
+ * Single runs and argument sets can be picked with -Dclassloading.include=&lt;regex&gt; and
+ * -Dclassloading.exclude=&lt;regex&gt;, matched against "run [arguments]".
+ */
+class RunMatrix {
+    private static final Pattern SIZE = Pattern.compile("(\\d+(?:\\.\\d+)?)([kKmMgG]?)$");
+
+    /**
+     * One level of every axis: a JDK, the JVM arguments of every JVM axis, a thread count, an
+     * executor and how fixtures are read.
+     */
+    static class Levels {
+        final Map<String, String> labels = new LinkedHashMap<>();
+        final List<String> jvmArgs = new ArrayList<>();
+        Jdk jdk;
+        // 0 for the threads of the measurement settings
+        int threads;
+        // null for no fan-out
+        String executor;
+        // null for no fixtures
+        String io;
+    }
+
+    private final Pattern include;
+    private final Pattern exclude;
+
+    RunMatrix(String include, String exclude) {
+        this.include = include == null ? null : Pattern.compile(include);
+        this.exclude = exclude == null ? null : Pattern.compile(exclude);
+    }
+
+    static RunMatrix fromProperties() {
+        return new RunMatrix(System.getProperty("classloading.include"), System.getProperty("classloading.exclude"));
+    }
+
+    /**
+     * Every combination of one level per axis, in the order of the spec, JVM axes sorted by name.
+     * @param jdks the "jdks" array of the spec, or null to fork with the JDK we run on
+     * @param axes the "jvm-axes" object of the spec, or null for none
+     */
+    static List<Levels> expand(JSONArray jdks, JSONObject axes) {
+        List<Levels> combinations = new ArrayList<>();
+        if (jdks == null) {
+            combinations.add(new Levels());
+        } else {
+            for (int i = 0; i < jdks.length(); ++i) {
+                JSONObject jdk = jdks.getJSONObject(i);
+                Levels levels = new Levels();
+                try {
+                    levels.jdk = new Jdk(jdk.getString("name"), Paths.get(jdk.getString("home")), i == 0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                levels.labels.put("jdk", levels.jdk.name);
+                combinations.add(levels);
+            }
+        }
+        if (axes == null) {
+            return combinations;
+        }
+        if (axes.has("jdk")) {
+            throw new IllegalArgumentException("jdk cannot be a JVM axis, list the JDKs in \"jdks\"");
+        }
+        if (axes.has("threads")) {
+            throw new IllegalArgumentException("threads cannot be a JVM axis, list the thread counts in \"thread-sweep\"");
+        }
+        if (axes.has("executor")) {
+            throw new IllegalArgumentException("executor cannot be a JVM axis, list the executors in \"fan-out\"");
+        }
+        if (axes.has("io")) {
+            throw new IllegalArgumentException("io cannot be a JVM axis, list how fixtures are read in \"fixture-io\"");
+        }
+        List<String> names = new ArrayList<>(axes.keySet());
+        Collections.sort(names);
+        for (String axis : names) {
+            JSONArray levels = axes.getJSONArray(axis);
+            if (levels.length() == 0) {
+                throw new IllegalArgumentException("JVM axis " + axis + " has no levels");
+            }
+            List<Levels> expanded = new ArrayList<>();
+            for (Levels combination : combinations) {
+                for (int i = 0; i < levels.length(); ++i) {
+                    JSONArray args = levels.getJSONArray(i);
+                    Levels next = new Levels();
+                    next.jdk = combination.jdk;
+                    next.labels.putAll(combination.labels);
+                    next.jvmArgs.addAll(combination.jvmArgs);
+                    List<String> label = new ArrayList<>();
+                    for (int j = 0; j < args.length(); ++j) {
+                        label.add(args.getString(j));
+                        next.jvmArgs.add(args.getString(j));
+                    }
+                    next.labels.put(axis, label.isEmpty() ? "default" : String.join(" ", label));
+                    expanded.add(next);
+                }
+            }
+            combinations = expanded;
+        }
+        return combinations;
+    }
+
+    /**
+     * Every combination again with each thread count, as the last axis.
+     * @param counts the thread counts of a sweep, or an empty list for none
+     */
+    static List<Levels> withThreads(List<Levels> combinations, List<Integer> counts) {
+        return with(combinations, "threads", counts, (levels, threads) -> levels.threads = threads);
+    }
+
+    /**
+     * Every combination again with each executor of a fan-out, as the last axis.
+     * @param executors the executors of a fan-out, or an empty list for none
+     */
+    static List<Levels> withExecutors(List<Levels> combinations, List<String> executors) {
+        return with(combinations, "executor", executors, (levels, executor) -> levels.executor = executor);
+    }
+
+    /**
+     * Every combination again with each way of reading the fixtures, as the last axis.
+     * @param io warm and cold reads, or an empty list for no fixtures
+     */
+    static List<Levels> withIo(List<Levels> combinations, List<String> io) {
+        return with(combinations, "io", io, (levels, level) -> levels.io = level);
+    }
+
+    private static <T> List<Levels> with(List<Levels> combinations, String axis, List<T> values, BiConsumer<Levels, T> set) {
+        if (values.isEmpty()) {
+            return combinations;
+        }
+        List<Levels> expanded = new ArrayList<>();
+        for (Levels combination : combinations) {
+            for (T value : values) {
+                Levels next = new Levels();
+                next.jdk = combination.jdk;
+                next.labels.putAll(combination.labels);
+                next.jvmArgs.addAll(combination.jvmArgs);
+                next.threads = combination.threads;
+                next.executor = combination.executor;
+                next.io = combination.io;
+                set.accept(next, value);
+                next.labels.put(axis, value.toString());
+                expanded.add(next);
+            }
+        }
+        return expanded;
+    }
+
+    static String runId(String program, String variant, Levels levels) {
+        StringBuilder id = new StringBuilder(program).append('/').append(variant);
+        for (Map.Entry<String, String> level : levels.labels.entrySet()) {
+            id.append('/').append(level.getKey()).append('=').append(level.getValue());
+        }
+        return id.toString();
+    }
+
+    /**
+     * A run identifier made safe to use in a file name. Identifiers that had to be changed get a
+     * hash of the original after a ~, which no safe identifier has, so that runs differing only
+     * in the replaced characters, like "p/a b" and "p/a_b", do not share their files.
+     */
+    static String fileName(String runId) {
+        String safe = runId.replaceAll("[^A-Za-z0-9._=,+-]", "_");
+        if (safe.equals(runId)) {
+            return safe;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(runId.getBytes(StandardCharsets.UTF_8));
+            return String.format("%s~%02x%02x%02x%02x", safe, hash[0], hash[1], hash[2], hash[3]);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JVM has SHA-256", e);
+        }
+    }
+
+    /**
+     * The argument sets of a run that pass the include and exclude filters.
+     */
+    List<String> select(String runId, List<String> arguments) {
+        List<String> selected = new ArrayList<>();
+        for (String a : arguments) {
+            String cell = runId + " [" + a + "]";
+            if ((include == null || include.matcher(cell).find())
+                    && (exclude == null || !exclude.matcher(cell).find())) {
+                selected.add(a);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * The input size of each argument set, for the scaling curves.
+     * @param explicit the "argument-sizes" of the spec, one per argument set, or null to take the
+     *                 number each argument set ends with
+     */
+    static Map<String, Double> sizes(List<String> arguments, JSONArray explicit) {
+        if (explicit != null && explicit.length() != arguments.size()) {
+            throw new IllegalArgumentException("argument-sizes needs one size per argument set");
+        }
+        Map<String, Double> sizes = new LinkedHashMap<>();
+        for (int i = 0; i < arguments.size(); ++i) {
+            Double size = explicit == null ? size(arguments.get(i)) : Double.valueOf(explicit.getDouble(i));
+            if (size != null) {
+                sizes.put(arguments.get(i), size);
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * The number a label ends with, e.g. 100 for "input 100" and 64 * 2^20 for "-Xmx64m".
+     * @return the number, or null if the label does not end with one
+     */
+    static Double size(String label) {
+        Matcher m = SIZE.matcher(label.trim());
+        if (!m.find()) {
+            return null;
+        }
+        double value = Double.parseDouble(m.group(1));
+        switch (m.group(2).toLowerCase()) {
+            case "k":
+                return value * 1024;
+            case "m":
+                return value * 1024 * 1024;
+            case "g":
+                return value * 1024 * 1024 * 1024;
+            default:
+                return value;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the results change along each axis of the run matrix, everything else kept the same.
+ *
+ * The axes are the argument sets of a program and its JVM axes, see {@link RunMatrix}. Each
+ * curve lists the score at every level of its axis. When the levels have sizes, it also gives
+ * the exponent k of time ~ size^k, fitted on a log-log scale, so 1 means linear scaling.
+ * The sizes come from "argument-sizes" of the program, or the number each argument set ends
+ * with. The curves are written to -Dclassloading.scaling (scaling.json by default).
+ */
+class ScalingReport {
+
+    /**
+     * Reads a results file and writes the curves found in it.
+     * @return the curves
+     */
+    static JSONArray write(Path resultsFile, Path reportFile) throws IOException {
+        JSONArray curves = curves(new ArrayList<>(RegressionGate.load(resultsFile).values()));
+        Files.write(reportFile, curves.toString(2).getBytes(StandardCharsets.UTF_8));
+        return curves;
+    }
+
+    /**
+     * Groups the records into curves, one per axis and combination of the other coordinates.
+     * Records without coordinates, like those of the calibration, are left out.
+     * @return only the curves with more than one point
+     */
+    static JSONArray curves(List<JSONObject> records) {
+        Map<String, JSONObject> curves = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject matrix = record.optJSONObject("matrix");
+            if (matrix == null) {
+                continue;
+            }
+            JSONObject axes = matrix.getJSONObject("axes");
+            List<String> names = new ArrayList<>(axes.keySet());
+            Collections.sort(names);
+            names.add(0, "arguments");
+
+            for (String axis : names) {
+                String level = axis.equals("arguments") ? matrix.getString("arguments") : axes.getString(axis);
+                // JDK names are no sizes, even if they end with a version number, and ThreadSweep
+                // has its own report for threads
+                Object size = axis.equals("arguments") ? matrix.opt("size")
+                        : axis.equals("jdk") || axis.equals("threads") ? null : RunMatrix.size(level);
+
+                // Everything but the axis itself, and whatever else sets the records apart
+                StringBuilder fixed = new StringBuilder(matrix.getString("program")).append('/')
+                        .append(matrix.getString("variant"));
+                if (record.optBoolean("cds")) {
+                    fixed.append("+cds");
+                }
+                for (String other : names) {
+                    if (!other.equals(axis) && !other.equals("arguments")) {
+                        fixed.append('/').append(other).append('=').append(axes.getString(other));
+                    }
+                }
+                if (!axis.equals("arguments")) {
+                    fixed.append(" [").append(matrix.getString("arguments")).append(']');
+                }
+                fixed.append(' ').append(record.getString("mode"));
+
+                JSONObject curve = curves.computeIfAbsent(axis + " " + fixed, k -> new JSONObject()
+                        .put("axis", axis)
+                        .put("fixed", fixed.toString())
+                        .put("mode", record.getString("mode"))
+                        .put("unit", record.getString("unit"))
+                        .put("points", new JSONArray()));
+                curve.getJSONArray("points").put(new JSONObject()
+                        .put("level", level)
+                        .put("size", size == null ? JSONObject.NULL : size)
+                        .put("score", record.get("score"))
+                        .put("scoreError", record.opt("scoreError")));
+            }
+        }
+
+        JSONArray result = new JSONArray();
+        for (JSONObject curve : curves.values()) {
+            if (curve.getJSONArray("points").length() > 1) {
+                curve.put("exponent", ResultSink.number(exponent(curve)));
+                result.put(curve);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The least squares slope of log(time) over log(size).
+     * @return NaN if fewer than two points have a size
+     */
+    static double exponent(JSONObject curve) {
+        boolean throughput = "thrpt".equals(curve.getString("mode"));
+        JSONArray points = curve.getJSONArray("points");
+        List<double[]> xy = new ArrayList<>();
+        for (int i = 0; i < points.length(); ++i) {
+            JSONObject p = points.getJSONObject(i);
+            double size = p.optDouble("size");
+            double score = p.optDouble("score");
+            if (size > 0 && score > 0) {
+                // Time per operation is the inverse of throughput
+                xy.add(new double[] { Math.log(size), Math.log(throughput ? 1 / score : score) });
+            }
+        }
+        if (xy.size() < 2) {
+            return Double.NaN;
+        }
+        double meanX = 0;
+        double meanY = 0;
+        for (double[] p : xy) {
+            meanX += p[0] / xy.size();
+            meanY += p[1] / xy.size();
+        }
+        double sxy = 0;
+        double sxx = 0;
+        for (double[] p : xy) {
+            sxy += (p[0] - meanX) * (p[1] - meanY);
+            sxx += (p[0] - meanX) * (p[0] - meanX);
+        }
+        return sxx == 0 ? Double.NaN : sxy / sxx;
+    }
+
+    static void print(JSONArray curves) {
+        for (int i = 0; i < curves.length(); ++i) {
+            JSONObject curve = curves.getJSONObject(i);
+            StringBuilder line = new StringBuilder("Scaling of ").append(curve.getString("fixed"))
+                    .append(" along ").append(curve.getString("axis")).append(':');
+            JSONArray points = curve.getJSONArray("points");
+            for (int j = 0; j < points.length(); ++j) {
+                JSONObject p = points.getJSONObject(j);
+                line.append(String.format(" [%s] %.4g", p.getString("level"), p.optDouble("score")));
+            }
+            line.append(' ').append(curve.getString("unit"));
+            double exponent = curve.optDouble("exponent");
+            if (!Double.isNaN(exponent)) {
+                line.append(String.format(", time ~ size^%.2f", exponent));
+            }
+            System.out.println(line);
+        }
+    }
+}
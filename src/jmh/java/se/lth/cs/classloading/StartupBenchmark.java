@@ -0,0 +1,304 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Measures the startup latency of a program: every run is a fresh JVM, timed from launch.
+ *
+ * JMH cannot time the start of the JVM it runs in, so this does not go through JMH at all.
+ * Each run reports three numbers:
+ * <ul>
+ *     <li>time-to-main: from starting the process until main is reached, see {@link StartupProbe}</li>
+ *     <li>time-to-exit: from starting the process until it has exited, this is the score</li>
+ *     <li>classloading: the time the JVM spent loading classes, from its perf counters</li>
+ * </ul>
+ * The perf counters also tell how much of that went to defining, verifying, linking and
+ * initializing classes, which are reported as phases like those of {@link PhaseTimes}.
+ * If asked to, the program is also measured with an AppCDS archive of its classpath, which is
+ * created by a training run first. That is a dynamic archive from JDK 13 on, and an archive
+ * dumped from a class list on JDK 10 to 12. Older JDKs have no AppCDS and are only measured
+ * without.
+ *
+ * A program or variant is measured this way instead of by JMH when it has e.g.
+ * "startup": {"runs": 20, "warmup-runs": 1, "cds": true}.
+ */
+class StartupBenchmark {
+    // The class loading phases the JVM keeps counters for, by the name they are reported as
+    private static final Map<String, String> PERF_PHASES = new LinkedHashMap<>();
+    static {
+        PERF_PHASES.put("phase.define", "sun.cls.defineAppClassTime");
+        PERF_PHASES.put("phase.verify", "sun.cls.classVerifyTime");
+        PERF_PHASES.put("phase.link", "sun.cls.classLinkedTime");
+        PERF_PHASES.put("phase.clinit", "sun.cls.classInitTime");
+    }
+
+    private final Path probeJar;
+    private final Path workDir;
+
+    StartupBenchmark() throws IOException {
+        workDir = Files.createTempDirectory("startup");
+        probeJar = writeProbeJar(workDir.resolve("startup-probe.jar"));
+    }
+
+    /**
+     * Measures every argument set of a variant, with and without the CDS archive.
+     * @return one record per argument set and archive setting, like the ones of ResultSink
+     */
+    List<JSONObject> run(String variant, ClassLoaderBenchmark.RunSpecRow row) throws IOException, InterruptedException {
+        List<JSONObject> records = new ArrayList<>();
+        for (String arguments : row.arguments) {
+            records.add(measure(variant, row, arguments, new ArrayList<>()));
+
+            if (row.startupCds) {
+                List<String> archiveFlags = createArchive(variant, row, arguments);
+                if (archiveFlags != null) {
+                    JSONObject record = measure(variant, row, arguments, archiveFlags);
+                    record.put("variant", variant + "+cds");
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    private JSONObject measure(String variant, ClassLoaderBenchmark.RunSpecRow row, String arguments,
+                               List<String> extraFlags) throws IOException, InterruptedException {
+        for (int i = 0; i < row.startupWarmupRuns; ++i) {
+            launch(variant, row, arguments, extraFlags, new HashMap<>());
+        }
+
+        ListStatistics toMain = new ListStatistics();
+        ListStatistics toExit = new ListStatistics();
+        ListStatistics classLoading = new ListStatistics();
+        Map<String, ListStatistics> phases = new LinkedHashMap<>();
+        for (String phase : PERF_PHASES.keySet()) {
+            phases.put(phase, new ListStatistics());
+        }
+        JSONArray samples = new JSONArray();
+        for (int i = 0; i < row.startupRuns; ++i) {
+            Map<String, Long> counters = new HashMap<>();
+            double[] run = launch(variant, row, arguments, extraFlags, counters);
+            toMain.addValue(run[0]);
+            toExit.addValue(run[1]);
+            classLoading.addValue(PerfData.ticksToMillis(counters, "sun.cls.time"));
+            for (Map.Entry<String, String> phase : PERF_PHASES.entrySet()) {
+                phases.get(phase.getKey()).addValue(PerfData.ticksToMillis(counters, phase.getValue()));
+            }
+            // Every run is a fork with a single iteration
+            samples.put(new JSONArray().put(run[1]));
+        }
+
+        JSONObject record = new JSONObject();
+        record.put("variant", variant);
+        JSONObject params = new JSONObject();
+        params.put("benchmarkIdentifier", variant);
+        params.put("mainClass", row.mainClass);
+        params.put("classPath", row.classPath);
+        params.put("arguments", arguments);
+        record.put("params", params);
+        record.put("jvm", java(row));
+        record.put("jdkVersion", row.jdk == null ? System.getProperty("java.version") : row.jdk.version);
+        record.put("vmVersion", row.jdk == null ? System.getProperty("java.vm.version") : row.jdk.version);
+        List<String> jvmArgs = new ArrayList<>(row.jvmArgs);
+        jvmArgs.addAll(extraFlags);
+        record.put("jvmArgs", new JSONArray(jvmArgs));
+        record.put("mode", "startup");
+        record.put("threads", 1);
+        record.put("forks", row.startupRuns);
+        record.put("cds", !extraFlags.isEmpty());
+        record.put("score", toExit.getMean());
+        record.put("scoreError", ResultSink.number(toExit.getMeanErrorAt(ResultSink.CONFIDENCE)));
+        record.put("confidence", ResultSink.interval(toExit.getConfidenceIntervalAt(ResultSink.CONFIDENCE)));
+        record.put("unit", "ms");
+
+        JSONObject secondary = new JSONObject();
+        secondary.put("time-to-main", ResultSink.statistic(toMain, "ms"));
+        secondary.put("time-to-exit", ResultSink.statistic(toExit, "ms"));
+        secondary.put("classloading", ResultSink.statistic(classLoading, "ms"));
+        for (Map.Entry<String, ListStatistics> phase : phases.entrySet()) {
+            secondary.put(phase.getKey(), ResultSink.statistic(phase.getValue(), "ms"));
+        }
+        record.put("secondary", secondary);
+        record.put("samples", samples);
+        record.put("cpus", "unpinned");
+        record.put("node", -1);
+        return record;
+    }
+
+    /**
+     * Starts the program once and waits for it.
+     * @param counters filled with the perf counters of the JVM
+     * @return time-to-main and time-to-exit, in milliseconds
+     */
+    private double[] launch(String variant, ClassLoaderBenchmark.RunSpecRow row, String arguments,
+                            List<String> extraFlags, Map<String, Long> counters) throws IOException, InterruptedException {
+        Path report = Files.createTempFile(workDir, "report", ".txt");
+        Path perfData = Files.createTempFile(workDir, "perf", ".hsperf");
+        List<String> command = command(row, arguments, extraFlags);
+        command.add(1, "-XX:+PerfDataSaveToFile");
+        command.add(2, "-XX:PerfDataSaveFile=" + perfData);
+        command.add(3, "-Dstartup.report=" + report);
+        command.add(4, "-Dstartup.launched=");
+
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        redirect(builder, variant, row);
+        // As late as possible, so that building the command is not part of the measurement
+        command.set(4, "-Dstartup.launched=" + System.nanoTime());
+        long launched = System.nanoTime();
+        Process process = builder.start();
+        int exitCode = process.waitFor();
+        long exited = System.nanoTime();
+
+        if (exitCode != 0) {
+            throw new IOException(variant + " exited with " + exitCode + ": " + String.join(" ", command));
+        }
+        String toMain = new String(Files.readAllBytes(report), StandardCharsets.UTF_8).trim();
+        if (toMain.isEmpty()) {
+            throw new IOException(variant + " never reached main");
+        }
+        counters.putAll(PerfData.read(perfData));
+        Files.delete(report);
+        Files.delete(perfData);
+
+        return new double[] { Long.parseLong(toMain) / 1e6, (exited - launched) / 1e6 };
+    }
+
+    /**
+     * The command running the program through the probe, without the measurement flags.
+     */
+    private List<String> command(ClassLoaderBenchmark.RunSpecRow row, String arguments, List<String> extraFlags) {
+        List<String> command = new ArrayList<>();
+        command.add(java(row));
+        command.addAll(row.jvmArgs);
+        command.addAll(extraFlags);
+        command.add("-Dstartup.main=" + row.mainClass);
+        command.add("-cp");
+        command.add(row.classPath + File.pathSeparator + probeJar);
+        command.add(StartupProbe.class.getName());
+        // Startup runs read the fixtures where they are
+        command.addAll(Arrays.asList(Fixtures.resolve(arguments.split(" "), row.fixtures)));
+        return command;
+    }
+
+    private static void redirect(ProcessBuilder builder, String variant, ClassLoaderBenchmark.RunSpecRow row) {
+        if ("console".equals(row.output)) {
+            builder.inheritIO();
+        } else {
+            builder.redirectOutput(Paths.get("program-output-" + RunMatrix.fileName(variant) + ".txt").toAbsolutePath().toFile());
+        }
+    }
+
+    /**
+     * Creates an AppCDS archive from a training run of the program.
+     * @return the flags using the archive, or null if the JDK cannot make one
+     */
+    private List<String> createArchive(String variant, ClassLoaderBenchmark.RunSpecRow row, String arguments)
+            throws IOException, InterruptedException {
+        int version = row.jdk == null ? javaVersion() : row.jdk.featureVersion();
+        Path archive = Files.createTempFile(workDir, "app", ".jsa");
+        Files.delete(archive);
+
+        if (version >= 13) {
+            List<String> training = command(row, arguments, Arrays.asList("-XX:ArchiveClassesAtExit=" + archive));
+            run(variant, row, training);
+        } else if (version >= 10) {
+            List<String> appCds = version == 10 ? Arrays.asList("-XX:+UseAppCDS") : new ArrayList<>();
+            Path classList = workDir.resolve(archive.getFileName() + ".classlist");
+            List<String> flags = new ArrayList<>(appCds);
+            flags.add("-XX:DumpLoadedClassList=" + classList);
+            run(variant, row, command(row, arguments, flags));
+
+            List<String> dump = new ArrayList<>();
+            dump.add(java(row));
+            dump.addAll(appCds);
+            dump.add("-Xshare:dump");
+            dump.add("-XX:SharedClassListFile=" + classList);
+            dump.add("-XX:SharedArchiveFile=" + archive);
+            dump.add("-cp");
+            dump.add(row.classPath + File.pathSeparator + probeJar);
+            run(variant, row, dump);
+        } else {
+            System.err.println("No AppCDS before JDK 10, " + variant + " is only measured without an archive");
+            return null;
+        }
+
+        if (!Files.exists(archive)) {
+            System.err.println("Could not create a CDS archive for " + variant + ", only measuring without");
+            return null;
+        }
+        List<String> flags = new ArrayList<>();
+        if (version == 10) {
+            flags.add("-XX:+UseAppCDS");
+        }
+        flags.add("-XX:SharedArchiveFile=" + archive);
+        return flags;
+    }
+
+    private static void run(String variant, ClassLoaderBenchmark.RunSpecRow row, List<String> command)
+            throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        redirect(builder, variant, row);
+        int exitCode = builder.start().waitFor();
+        if (exitCode != 0) {
+            System.err.println("Exit code " + exitCode + " from " + String.join(" ", command));
+        }
+    }
+
+    private static String java(ClassLoaderBenchmark.RunSpecRow row) {
+        if (row.jdk != null) {
+            return row.jdk.java();
+        }
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    /**
+     * The feature version of the running JDK, e.g. 8 for "1.8" and 17 for "17".
+     */
+    static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        return Integer.parseInt(version);
+    }
+
+    /**
+     * Copies StartupProbe into a jar of its own, so the programs do not need the harness on their classpath.
+     * CDS does not archive classes from directories, so it has to be a jar.
+     */
+    private static Path writeProbeJar(Path jar) throws IOException {
+        String entry = StartupProbe.class.getName().replace('.', '/') + ".class";
+        try (InputStream in = StartupProbe.class.getClassLoader().getResourceAsStream(entry);
+             JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            if (in == null) {
+                throw new IOException("Cannot find " + entry);
+            }
+            out.putNextEntry(new JarEntry(entry));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.closeEntry();
+        }
+        return jar;
+    }
+}
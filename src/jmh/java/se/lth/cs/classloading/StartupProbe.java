@@ -0,0 +1,48 @@
+package se.lth.cs.classloading;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * The main class of the JVMs started by {@link StartupBenchmark}.
+ *
+ * It notes how long it took from launching the process to reaching main, runs the real main
+ * class, and writes the measurement to a file on exit. The launcher passes its System.nanoTime()
+ * along, which is comparable across processes on Linux as both use CLOCK_MONOTONIC.
+ *
+ * This class is copied into a jar of its own and put on the classpath of the program, so it must
+ * not use anything else from the harness. It is its own shutdown hook to avoid an extra class.
+ */
+public class StartupProbe extends Thread {
+    private final long toMain;
+    private final String report;
+
+    private StartupProbe(long toMain, String report) {
+        this.toMain = toMain;
+        this.report = report;
+    }
+
+    @Override
+    public void run() {
+        try (FileOutputStream out = new FileOutputStream(report)) {
+            out.write(Long.toString(toMain).getBytes("UTF-8"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        long atMain = System.nanoTime();
+        // Training runs for the CDS archive are not measured
+        String launched = System.getProperty("startup.launched");
+        if (launched != null) {
+            Runtime.getRuntime().addShutdownHook(new StartupProbe(atMain - Long.parseLong(launched),
+                    System.getProperty("startup.report")));
+        }
+
+        Method main = Class.forName(System.getProperty("startup.main")).getDeclaredMethod("main", String[].class);
+        main.setAccessible(true);
+        main.invoke(null, (Object) args);
+    }
+}
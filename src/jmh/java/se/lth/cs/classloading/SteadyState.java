@@ -0,0 +1,175 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.results.BenchmarkResult;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.util.ListStatistics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive warmup: decides per fork when the program has reached a steady state, and only
+ * measures from there.
+ *
+ * JMH runs a fixed number of iterations in a fork and cannot be stopped early, so an adaptive
+ * variant runs without JMH warmup, with up to "warmup-budget" extra measurement iterations. The
+ * fork is steady from the first iteration where the next "steady-window" iterations have a
+ * coefficient of variation of at most "steady-cv", and the means of both halves of that window
+ * also differ by no more than that. Everything before it is warmup and dropped from the score,
+ * and every iteration from it on counts, also those beyond "measurement-iterations", as the fork
+ * ran them anyway. A fork that never gets there is measured on its last measurement-iterations,
+ * and reported as not steady.
+ *
+ * The secondary results, of the GC and other profilers, are aggregated again over the same
+ * iterations. Those a profiler only reports once per fork cannot be split up; they cover the
+ * whole fork, warmup included, and are listed in "wholeFork" of the record.
+ * As every fork runs the whole budget, adaptive warmup costs more iterations than the fixed one,
+ * see {@link MeasurementSettings}.
+ *
+ * How many iterations and how long it took to get steady are secondary results of the record.
+ */
+class SteadyState {
+
+    /**
+     * The first iteration from which the scores are steady.
+     * @return the index of that iteration, or -1 if the scores never settle
+     */
+    static int detect(double[] scores, int window, double maxCv) {
+        for (int start = 0; start + window <= scores.length; ++start) {
+            ListStatistics all = new ListStatistics();
+            ListStatistics firstHalf = new ListStatistics();
+            ListStatistics secondHalf = new ListStatistics();
+            for (int i = 0; i < window; ++i) {
+                double score = scores[start + i];
+                all.addValue(score);
+                (i < window / 2 ? firstHalf : secondHalf).addValue(score);
+            }
+            double mean = all.getMean();
+            if (mean == 0) {
+                continue;
+            }
+            // The halves catch a slow drift that is too smooth to show up in the variation
+            double cv = all.getStandardDeviation() / mean;
+            double drift = Math.abs(firstHalf.getMean() - secondHalf.getMean()) / mean;
+            if (cv <= maxCv && drift <= maxCv) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the score, samples and secondary results of a record by those of the steady
+     * iterations of every fork, keeping the scores of the dropped ones as "warmup".
+     */
+    static void trim(RunResult result, JSONObject record, MeasurementSettings settings) {
+        ListStatistics kept = new ListStatistics();
+        ListStatistics steadyIterations = new ListStatistics();
+        ListStatistics timeToSteady = new ListStatistics();
+        JSONArray samples = new JSONArray();
+        JSONArray warmup = new JSONArray();
+        List<BenchmarkResult> keptForks = new ArrayList<>();
+        int unsteady = 0;
+
+        for (BenchmarkResult fork : result.getBenchmarkResults()) {
+            List<IterationResult> iterations = new ArrayList<>(fork.getIterationResults());
+            double[] scores = new double[iterations.size()];
+            for (int i = 0; i < scores.length; ++i) {
+                scores[i] = iterations.get(i).getPrimaryResult().getScore();
+            }
+
+            int steady = detect(scores, settings.steadyWindow, settings.steadyCv);
+            if (steady < 0) {
+                ++unsteady;
+                steady = Math.max(0, scores.length - settings.measurementIterations);
+            }
+
+            JSONArray forkSamples = new JSONArray();
+            JSONArray forkWarmup = new JSONArray();
+            double seconds = 0;
+            for (int i = 0; i < scores.length; ++i) {
+                if (i < steady) {
+                    forkWarmup.put(scores[i]);
+                    seconds += duration(iterations.get(i));
+                } else {
+                    forkSamples.put(scores[i]);
+                    kept.addValue(scores[i]);
+                }
+            }
+            keptForks.add(new BenchmarkResult(fork.getParams(), iterations.subList(steady, scores.length), fork.getMetadata()));
+            samples.put(forkSamples);
+            warmup.put(forkWarmup);
+            steadyIterations.addValue(steady);
+            timeToSteady.addValue(seconds);
+        }
+
+        record.put("score", kept.getMean());
+        record.put("scoreError", ResultSink.number(kept.getMeanErrorAt(ResultSink.CONFIDENCE)));
+        record.put("confidence", ResultSink.interval(kept.getConfidenceIntervalAt(ResultSink.CONFIDENCE)));
+        record.put("samples", samples);
+        record.put("warmup", warmup);
+        record.put("steady", unsteady == 0);
+        JSONObject secondary = record.getJSONObject("secondary");
+        JSONObject steadySecondary = ResultSink.secondary(new RunResult(result.getParams(), keptForks));
+        JSONArray wholeFork = new JSONArray();
+        for (String label : new ArrayList<>(secondary.keySet())) {
+            if (steadySecondary.has(label)) {
+                secondary.put(label, steadySecondary.get(label));
+            } else {
+                wholeFork.put(label);
+            }
+        }
+        record.put("wholeFork", wholeFork);
+        secondary.put("steady-state.iterations", ResultSink.statistic(steadyIterations, "iterations"));
+        secondary.put("time-to-steady-state", ResultSink.statistic(timeToSteady, "s"));
+        if (unsteady > 0) {
+            System.err.println(record.getString("variant") + " [" + record.getJSONObject("params").optString("arguments")
+                    + "]: " + unsteady + " fork(s) did not reach a steady state within the warmup budget");
+        }
+    }
+
+    /**
+     * How long an iteration took, in seconds: its configured time, or longer if its operations
+     * took longer than that.
+     */
+    private static double duration(IterationResult iteration) {
+        double configured = iteration.getParams().getTime().convertTo(TimeUnit.NANOSECONDS) / 1e9;
+        double score = iteration.getPrimaryResult().getScore();
+        String unit = iteration.getScoreUnit();
+        long ops = iteration.getMetadata().getAllOps();
+        double perOp;
+        if (unit.startsWith("ops/")) {
+            perOp = score == 0 ? 0 : seconds(unit.substring(4)) / score;
+        } else if (unit.endsWith("/op")) {
+            perOp = score * seconds(unit.substring(0, unit.length() - 3));
+        } else {
+            return configured;
+        }
+        return Math.max(configured, ops * perOp);
+    }
+
+    private static double seconds(String unit) {
+        switch (unit) {
+            case "ns":
+                return 1e-9;
+            case "us":
+                return 1e-6;
+            case "ms":
+                return 1e-3;
+            case "s":
+                return 1;
+            case "min":
+                return 60;
+            case "hr":
+                return 3600;
+            case "day":
+                return 86400;
+            default:
+                return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package se.lth.cs.classloading;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * How well a program scales when main runs in several threads of the same JVM at once.
+ *
+ * A program or variant with
+ * <pre>
+ * "thread-sweep": [1, 2, 4, 8]
+ * </pre>
+ * or "thread-sweep": true for 1, 2, 4 ... up to the number of CPUs of a fork, which are those of
+ * its slot when variants run side by side with -Dclassloading.parallel, gets a "threads" axis in the
+ * run matrix, each level a run with that many JMH threads calling main. JMH fixes the number of
+ * threads for a whole run, so each level has forks of its own. Before a run with more than one
+ * thread is measured, its fork calls main from all threads at once for a while, and stops if any
+ * call fails, see {@link ClassLoaderBenchmark.BenchmarkState}. A program that is known not to be
+ * thread safe can say "thread-safe": false, and is then refused more than one thread up front.
+ *
+ * The report gives for every point the throughput of all threads together, the speedup over the
+ * fewest threads, the parallel efficiency (the speedup divided by how many more threads it took),
+ * and where the curve flattens: the last thread count after which more threads still bought at
+ * least a tenth of the throughput they would in a perfect world.
+ * The curves are written to -Dclassloading.threadReport (thread-sweep.json by default).
+ */
+class ThreadSweep {
+    // Smallest share of the ideal gain that still counts as scaling
+    private static final double MARGINAL_EFFICIENCY = 0.1;
+
+    /**
+     * The thread counts of a "thread-sweep" spec.
+     * @param cpus how many CPUs a fork can run on
+     * @return the counts in increasing order, or an empty list for no sweep
+     */
+    static List<Integer> counts(String run, Object sweep, int cpus) {
+        TreeSet<Integer> counts = new TreeSet<>();
+        if (sweep == null || Boolean.FALSE.equals(sweep)) {
+            return new ArrayList<>();
+        }
+        if (Boolean.TRUE.equals(sweep)) {
+            for (int n = 1; n < cpus; n *= 2) {
+                counts.add(n);
+            }
+            counts.add(cpus);
+        } else if (sweep instanceof JSONArray) {
+            JSONArray array = (JSONArray) sweep;
+            for (int i = 0; i < array.length(); ++i) {
+                counts.add(array.getInt(i));
+            }
+        } else {
+            throw new IllegalArgumentException("thread-sweep is a list of thread counts or true, not " + sweep);
+        }
+        if (counts.isEmpty() || counts.first() < 1) {
+            throw new IllegalArgumentException("thread-sweep needs thread counts of at least 1, got " + sweep);
+        }
+        if (counts.last() > cpus) {
+            System.err.println("The thread-sweep of " + run + " goes up to " + counts.last() + " threads, but its forks run on "
+                    + cpus + " CPU(s), beyond which the curve flattens for want of CPUs");
+        }
+        return new ArrayList<>(counts);
+    }
+
+    /**
+     * Reads a results file and writes the scalability curves in it, if there are any.
+     * @return the curves
+     */
+    static JSONArray write(Path resultsFile, Path reportFile) throws IOException {
+        JSONArray curves = curves(new ArrayList<>(RegressionGate.load(resultsFile).values()));
+        if (curves.length() > 0) {
+            Files.write(reportFile, curves.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        return curves;
+    }
+
+    static JSONArray curves(List<JSONObject> records) {
+        Map<String, List<JSONObject>> groups = new LinkedHashMap<>();
+        for (JSONObject record : records) {
+            JSONObject matrix = record.optJSONObject("matrix");
+            if (matrix == null || !matrix.getJSONObject("axes").has("threads")) {
+                continue;
+            }
+            JSONObject axes = matrix.getJSONObject("axes");
+            List<String> names = new ArrayList<>(axes.keySet());
+            Collections.sort(names);
+            StringBuilder key = new StringBuilder(matrix.getString("program")).append('/').append(matrix.getString("variant"));
+            for (String axis : names) {
+                if (!axis.equals("threads")) {
+                    key.append('/').append(axis).append('=').append(axes.getString(axis));
+                }
+            }
+            key.append(" [").append(matrix.getString("arguments")).append("] ").append(record.getString("mode"));
+            groups.computeIfAbsent(key.toString(), k -> new ArrayList<>()).add(record);
+        }
+
+        JSONArray curves = new JSONArray();
+        for (Map.Entry<String, List<JSONObject>> group : groups.entrySet()) {
+            List<JSONObject> points = group.getValue();
+            if (points.size() < 2) {
+                continue;
+            }
+            points.sort((a, b) -> Integer.compare(a.getInt("threads"), b.getInt("threads")));
+            JSONObject first = points.get(0);
+            int baseThreads = first.getInt("threads");
+            double base = throughput(first);
+
+            JSONObject curve = new JSONObject();
+            curve.put("name", group.getKey());
+            curve.put("unit", throughputUnit(first));
+            JSONArray curvePoints = new JSONArray();
+            Integer flattensAt = null;
+            int previousThreads = baseThreads;
+            double previous = base;
+            for (JSONObject record : points) {
+                int threads = record.getInt("threads");
+                double throughput = throughput(record);
+                double speedup = throughput / base;
+                curvePoints.put(new JSONObject()
+                        .put("threads", threads)
+                        .put("throughput", throughput)
+                        .put("speedup", speedup)
+                        .put("efficiency", speedup * baseThreads / threads));
+                if (threads > previousThreads && flattensAt == null) {
+                    double ideal = (threads - previousThreads) * base / baseThreads;
+                    if ((throughput - previous) / ideal < MARGINAL_EFFICIENCY) {
+                        flattensAt = previousThreads;
+                    }
+                }
+                previousThreads = threads;
+                previous = throughput;
+            }
+            curve.put("points", curvePoints);
+            curve.put("flattensAt", flattensAt == null ? JSONObject.NULL : flattensAt);
+            curves.put(curve);
+        }
+        return curves;
+    }
+
+    /**
+     * Calls of main per time unit, by all threads together.
+     * JMH adds up the throughput of the threads, but averages the time per call over them.
+     */
+    private static double throughput(JSONObject record) {
+        double score = record.getDouble("score");
+        return "thrpt".equals(record.getString("mode")) ? score : record.getInt("threads") / score;
+    }
+
+    private static String throughputUnit(JSONObject record) {
+        String unit = record.getString("unit");
+        if ("thrpt".equals(record.getString("mode"))) {
+            return unit;
+        }
+        // s/op becomes op/s
+        String[] parts = unit.split("/", 2);
+        return parts.length == 2 ? parts[1] + "/" + parts[0] : "1/" + unit;
+    }
+
+    static void print(JSONArray curves) {
+        for (int i = 0; i < curves.length(); ++i) {
+            JSONObject curve = curves.getJSONObject(i);
+            System.out.println("Thread scaling of " + curve.getString("name"));
+            System.out.printf("  %8s %14s %-10s %8s %10s%n", "threads", "throughput", "unit", "speedup", "efficiency");
+            JSONArray points = curve.getJSONArray("points");
+            for (int j = 0; j < points.length(); ++j) {
+                JSONObject p = points.getJSONObject(j);
+                System.out.printf("  %8d %14.4g %-10s %8.2f %10.2f%n", p.getInt("threads"), p.getDouble("throughput"),
+                        curve.getString("unit"), p.getDouble("speedup"), p.getDouble("efficiency"));
+            }
+            System.out.println(curve.isNull("flattensAt") ? "  Still scaling at the most threads"
+                    : "  Flattens after " + curve.getInt("flattensAt") + " threads");
+        }
+    }
+}